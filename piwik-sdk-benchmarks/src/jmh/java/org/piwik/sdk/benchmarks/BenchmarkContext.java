@@ -0,0 +1,58 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.benchmarks;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Just enough of a Context to create {@link org.piwik.sdk.Piwik} and trackers outside of Android.
+ */
+public class BenchmarkContext extends ContextWrapper {
+    private final Map<String, SharedPreferences> mPreferences = new HashMap<>();
+
+    public BenchmarkContext() {
+        super(null);
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public String getPackageName() {
+        return "org.piwik.sdk.benchmarks";
+    }
+
+    @Override
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        SharedPreferences preferences = mPreferences.get(name);
+        if (preferences == null) {
+            preferences = new InMemorySharedPreferences();
+            mPreferences.put(name, preferences);
+        }
+        return preferences;
+    }
+
+    @Override
+    public Object getSystemService(String name) {
+        // DeviceHelper falls back to an unknown resolution
+        return null;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return new File(System.getProperty("java.io.tmpdir"), "piwik-benchmarks");
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.piwik.sdk.tools.CachedDateFormat;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Formatting the request time, which happens for every tracked event.
+ */
+@State(Scope.Thread)
+public class DateFormatBenchmark {
+
+    @Benchmark
+    public String newSimpleDateFormat() {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ").format(new Date());
+    }
+
+    @Benchmark
+    public String cachedDateFormat() {
+        return CachedDateFormat.now();
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.benchmarks;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.piwik.sdk.dispatcher.Dispatcher;
+import org.piwik.sdk.dispatcher.TrackerBulkURLWrapper;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+@State(Scope.Thread)
+public class DispatcherBenchmark {
+    private Map<String, String> mEventParams;
+    private TrackerBulkURLWrapper mWrapper;
+    private TrackerBulkURLWrapper.Page mPage;
+
+    @Setup
+    public void setup() throws Exception {
+        mEventParams = Fixtures.event().toMap();
+        List<String> queries = new ArrayList<>();
+        String query = Dispatcher.urlEncodeUTF8(mEventParams);
+        for (int i = 0; i < 20; i++)
+            queries.add(query);
+        mWrapper = new TrackerBulkURLWrapper(new URL("http://example.com/piwik.php"), queries, null);
+        mPage = mWrapper.iterator().next();
+    }
+
+    @Benchmark
+    public String urlEncodeUTF8() {
+        return Dispatcher.urlEncodeUTF8(mEventParams);
+    }
+
+    /**
+     * Body of a full bulk request.
+     */
+    @Benchmark
+    public String getEvents() {
+        JSONObject events = mWrapper.getEvents(mPage);
+        return events != null ? events.toString() : null;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.benchmarks;
+
+import org.piwik.sdk.QueryParams;
+import org.piwik.sdk.TrackMe;
+
+/**
+ * Typical payloads, sized like what an app sends per screen view.
+ */
+public class Fixtures {
+
+    /**
+     * @return an event with the parameters the Tracker injects into every request
+     */
+    public static TrackMe event() {
+        return new TrackMe()
+                .set(QueryParams.SITE_ID, 1)
+                .set(QueryParams.RECORD, 1)
+                .set(QueryParams.API_VERSION, 1)
+                .set(QueryParams.RANDOM_NUMBER, 48151)
+                .set(QueryParams.DATETIME_OF_REQUEST, "2016-06-01 12:34:56+0200")
+                .set(QueryParams.SEND_IMAGE, "0")
+                .set(QueryParams.VISITOR_ID, "0123456789abcdef")
+                .set(QueryParams.USER_ID, "8f6c3f2e-2b4e-4b8e-9a38-4e6f0c7d5a11")
+                .set(QueryParams.VISIT_SCOPE_CUSTOM_VARIABLES, "{\"1\":[\"App version\",\"1.0.0\"]}")
+                .set(QueryParams.URL_PATH, "http://org.piwik.sdk.benchmarks/main/settings?tab=privacy")
+                .set(QueryParams.ACTION_NAME, "Settings / Privacy")
+                .set(QueryParams.SCREEN_RESOLUTION, "1080x1920")
+                .set(QueryParams.USER_AGENT, "Dalvik/2.1.0 (Linux; U; Android 6.0; Nexus 5 Build/MRA58K)")
+                .set(QueryParams.LANGUAGE, "en")
+                .set(QueryParams.COUNTRY, "US")
+                .set(QueryParams.EVENT_CATEGORY, "Settings")
+                .set(QueryParams.EVENT_ACTION, "Toggle")
+                .set(QueryParams.EVENT_NAME, "Opt out")
+                .set(QueryParams.EVENT_VALUE, 1);
+    }
+}
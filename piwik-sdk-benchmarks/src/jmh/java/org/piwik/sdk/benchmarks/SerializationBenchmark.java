@@ -0,0 +1,48 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.piwik.sdk.CustomVariables;
+import org.piwik.sdk.ecommerce.EcommerceItems;
+
+/**
+ * Json values that are serialized for each event they are attached to.
+ */
+@State(Scope.Thread)
+public class SerializationBenchmark {
+    private CustomVariables mCustomVariables;
+    private EcommerceItems mEcommerceItems;
+
+    @Setup
+    public void setup() {
+        mCustomVariables = new CustomVariables();
+        mCustomVariables.put(1, "App version", "1.0.0");
+        mCustomVariables.put(2, "Build", "release");
+        mCustomVariables.put(3, "Theme", "dark");
+        mCustomVariables.put(4, "Logged in", "true");
+        mCustomVariables.put(5, "Plan", "premium");
+
+        mEcommerceItems = new EcommerceItems();
+        for (int i = 0; i < 5; i++)
+            mEcommerceItems.addItem(new EcommerceItems.Item("sku-" + i).name("Item " + i).category("Category").price(1999).quantity(i + 1));
+    }
+
+    @Benchmark
+    public String customVariablesToString() {
+        return mCustomVariables.toString();
+    }
+
+    @Benchmark
+    public String ecommerceItemsToJson() {
+        return mEcommerceItems.toJson();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.benchmarks;
+
+import android.content.SharedPreferences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.piwik.sdk.Piwik;
+import org.piwik.sdk.QueryParams;
+import org.piwik.sdk.TrackMe;
+import org.piwik.sdk.Tracker;
+import org.piwik.sdk.dispatcher.EventQueue;
+
+/**
+ * Tracking the first event of a session, which also counts the visit.
+ * {@link #preferencesPerSession()} replays what the tracker used to do with the preferences on each session start.
+ */
+@State(Scope.Benchmark)
+public class SessionStartBenchmark {
+    private static final String PREF_KEY_VISITCOUNT = "tracker.visitcount";
+    private static final String PREF_KEY_FIRSTVISIT = "tracker.firstvisit";
+    private static final String PREF_KEY_PREVIOUSVISIT = "tracker.previousvisit";
+
+    private Tracker mTracker;
+    private SharedPreferences mPreferences;
+
+    @Setup
+    public void setup() throws Exception {
+        Piwik piwik = Piwik.getInstance(new BenchmarkContext());
+        piwik.setDryRun(true);
+        mPreferences = piwik.getSharedPreferences();
+        mTracker = piwik.newTracker("http://example.com/piwik.php", 1);
+        mTracker.setDispatchInterval(-1);
+        mTracker.setDispatchQueueLimit(1000, -1, EventQueue.OverflowPolicy.DROP_OLDEST);
+        // Every event starts a new session
+        mTracker.setSessionTimeout(-1);
+    }
+
+    @Benchmark
+    public Tracker trackSessionStart() {
+        return mTracker.track(new TrackMe()
+                .set(QueryParams.URL_PATH, "/main")
+                .set(QueryParams.ACTION_NAME, "Main"));
+    }
+
+    @Benchmark
+    public long preferencesPerSession() {
+        int visitCount;
+        long firstVisitTime;
+        long previousVisit;
+        synchronized (mPreferences) {
+            visitCount = 1 + mPreferences.getInt(PREF_KEY_VISITCOUNT, 0);
+            mPreferences.edit().putInt(PREF_KEY_VISITCOUNT, visitCount).apply();
+        }
+        synchronized (mPreferences) {
+            firstVisitTime = mPreferences.getLong(PREF_KEY_FIRSTVISIT, -1);
+            if (firstVisitTime == -1) {
+                firstVisitTime = System.currentTimeMillis() / 1000;
+                mPreferences.edit().putLong(PREF_KEY_FIRSTVISIT, firstVisitTime).apply();
+            }
+        }
+        synchronized (mPreferences) {
+            previousVisit = mPreferences.getLong(PREF_KEY_PREVIOUSVISIT, -1);
+            mPreferences.edit().putLong(PREF_KEY_PREVIOUSVISIT, System.currentTimeMillis() / 1000).apply();
+        }
+        return visitCount + firstVisitTime + previousVisit;
+    }
+
+    @Benchmark
+    public long visitorCountersPerSession() {
+        return mTracker.getPiwik().getVisitorCounters().startVisit(System.currentTimeMillis() / 1000).getVisitCount();
+    }
+}
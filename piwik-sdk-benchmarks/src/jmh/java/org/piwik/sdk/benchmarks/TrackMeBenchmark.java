@@ -0,0 +1,64 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.piwik.sdk.QueryParams;
+import org.piwik.sdk.TrackMe;
+import org.piwik.sdk.dispatcher.Dispatcher;
+
+import java.util.Map;
+
+@State(Scope.Thread)
+public class TrackMeBenchmark {
+    private TrackMe mEvent;
+
+    @Setup
+    public void setup() {
+        mEvent = Fixtures.event();
+    }
+
+    @Benchmark
+    public TrackMe set() {
+        return new TrackMe()
+                .set(QueryParams.URL_PATH, "/main/settings")
+                .set(QueryParams.ACTION_NAME, "Settings")
+                .set(QueryParams.SITE_ID, 1)
+                .set(QueryParams.RANDOM_NUMBER, 48151)
+                .set(QueryParams.LANGUAGE, "en");
+    }
+
+    /**
+     * What the Tracker does for each injected parameter, most of them are already set.
+     */
+    @Benchmark
+    public TrackMe trySet() {
+        return mEvent
+                .trySet(QueryParams.SITE_ID, 1)
+                .trySet(QueryParams.RECORD, 1)
+                .trySet(QueryParams.API_VERSION, 1)
+                .trySet(QueryParams.SEND_IMAGE, "0")
+                .trySet(QueryParams.LANGUAGE, "en");
+    }
+
+    @Benchmark
+    public Map<String, String> toMap() {
+        return mEvent.toMap();
+    }
+
+    /**
+     * What the Tracker does to encode each event.
+     */
+    @Benchmark
+    public String urlEncode() {
+        return Dispatcher.urlEncodeUTF8(mEvent);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.piwik.sdk.Piwik;
+import org.piwik.sdk.QueryParams;
+import org.piwik.sdk.TrackMe;
+import org.piwik.sdk.Tracker;
+import org.piwik.sdk.dispatcher.EventQueue;
+
+/**
+ * Everything {@link Tracker#track(TrackMe)} does on the calling thread, usually the UI thread.
+ * Nothing is dispatched, the queue is bounded so it doesn't grow during the run.
+ */
+@State(Scope.Benchmark)
+public class TrackerBenchmark {
+    private Tracker mTracker;
+
+    @Setup
+    public void setup() throws Exception {
+        Piwik piwik = Piwik.getInstance(new BenchmarkContext());
+        piwik.setDryRun(true);
+        mTracker = piwik.newTracker("http://example.com/piwik.php", 1);
+        mTracker.setDispatchInterval(-1);
+        mTracker.setDispatchQueueLimit(1000, -1, EventQueue.OverflowPolicy.DROP_OLDEST);
+    }
+
+    @Benchmark
+    public Tracker trackScreen() {
+        return mTracker.track(new TrackMe()
+                .set(QueryParams.URL_PATH, "/main/settings")
+                .set(QueryParams.ACTION_NAME, "Settings"));
+    }
+
+    @Benchmark
+    public Tracker trackEvent() {
+        return mTracker.track(new TrackMe()
+                .set(QueryParams.EVENT_CATEGORY, "Settings")
+                .set(QueryParams.EVENT_ACTION, "Toggle")
+                .set(QueryParams.EVENT_NAME, "Opt out")
+                .set(QueryParams.EVENT_VALUE, 1));
+    }
+}
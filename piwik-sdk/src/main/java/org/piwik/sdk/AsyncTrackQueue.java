@@ -0,0 +1,109 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk;
+
+import android.support.annotation.NonNull;
+
+import org.piwik.sdk.tools.MpscRingBuffer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Hands {@link TrackMe}s from any thread over to a single consumer task that does the actual tracking, in order.
+ * <p/>
+ * Publishing never blocks, if the buffer is full the event is dropped and counted.
+ * The consumer is submitted to the executor on demand and ends once the buffer is drained.
+ */
+class AsyncTrackQueue {
+    private static final String LOGGER_TAG = Piwik.LOGGER_PREFIX + "AsyncTrackQueue";
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private final Tracker mTracker;
+    private final Executor mExecutor;
+    private final MpscRingBuffer<TrackMe> mBuffer;
+    private final AtomicBoolean mRunning = new AtomicBoolean(false);
+    private final AtomicBoolean mDispatchRequested = new AtomicBoolean(false);
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    AsyncTrackQueue(@NonNull Tracker tracker, @NonNull Executor executor, int capacity) {
+        mTracker = tracker;
+        mExecutor = executor;
+        mBuffer = new MpscRingBuffer<>(capacity);
+    }
+
+    /**
+     * @return false if the event was dropped because the buffer is full
+     */
+    boolean publish(@NonNull TrackMe trackMe) {
+        if (!mBuffer.offer(trackMe)) {
+            mDroppedCount.incrementAndGet();
+            Timber.tag(LOGGER_TAG).w("Async tracking buffer is full, event dropped.");
+            return false;
+        }
+        wakeConsumer();
+        return true;
+    }
+
+    /**
+     * Dispatches once everything published so far was tracked.
+     */
+    void requestDispatch() {
+        mDispatchRequested.set(true);
+        wakeConsumer();
+    }
+
+    long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    private void wakeConsumer() {
+        if (!mRunning.get() && mRunning.compareAndSet(false, true)) {
+            try {
+                mExecutor.execute(mLoop);
+            } catch (RejectedExecutionException e) {
+                mRunning.set(false);
+                Timber.tag(LOGGER_TAG).e(e, "Can't start the consumer.");
+            }
+        }
+    }
+
+    private boolean hasWork() {
+        return !mBuffer.isEmpty() || mDispatchRequested.get();
+    }
+
+    private final Runnable mLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                TrackMe trackMe;
+                while ((trackMe = mBuffer.poll()) != null) {
+                    try {
+                        mTracker.trackNow(trackMe);
+                    } catch (Exception e) {
+                        Timber.tag(LOGGER_TAG).e(e, "Failed to track event.");
+                    }
+                }
+                if (mDispatchRequested.compareAndSet(true, false)) {
+                    mTracker.dispatchNow();
+                    continue;
+                }
+
+                mRunning.set(false);
+                // A producer may have published after our last look but still seen us running
+                if (hasWork() && mRunning.compareAndSet(false, true))
+                    continue;
+                return;
+            }
+        }
+    };
+}
@@ -77,12 +77,12 @@ public class DownloadTracker {
     }
 
     public void trackNewAppDownload(@NonNull final Extra extra) {
-        final Thread trackTask = new Thread(new Runnable() {
+        final Runnable trackTask = new Runnable() {
             @Override
             public void run() {
                 trackNewAppDownloadInternal(extra);
             }
-        });
+        };
 
         boolean delay = INSTALL_SOURCE_GOOGLE_PLAY.equals(mPackMan.getInstallerPackageName(mPackageName));
         if (delay) {
@@ -95,7 +95,7 @@ public class DownloadTracker {
             public void run() {
                 if (extra == Extra.APK_CHECKSUM) {
                     // Don't do APK checksum on this thread, we don't want to block.
-                    trackTask.start();
+                    mTracker.getPiwik().getExecutor().execute(trackTask);
                 } else {
                     trackTask.run();
                 }
@@ -0,0 +1,213 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk;
+
+import android.support.annotation.NonNull;
+
+import org.piwik.sdk.dispatcher.Priority;
+import org.piwik.sdk.tools.CachedDateFormat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Merges identical events tracked within a time window into one, e.g. scroll or playback progress events.
+ * <p/>
+ * Events are identical if all their parameters but {@link QueryParams#EVENT_VALUE} are equal.
+ * The merged event carries the sum of the values and, if there was more than one, the number of events in {@link #COUNT_PARAM}.
+ * Only events with an {@link QueryParams#EVENT_CATEGORY} are merged, {@link Priority#CRITICAL} ones never.
+ * <p/>
+ * The merged event is a copy of the first one and keeps its {@link QueryParams#DATETIME_OF_REQUEST}.
+ * <p/>
+ * The window starts with the first event held back and ends after {@link #setWindow(long)} or with {@link Tracker#dispatch()}.
+ * Disabled by default.
+ */
+public class EventAggregator {
+    private static final String LOGGER_TAG = Piwik.LOGGER_PREFIX + "EventAggregator";
+    /**
+     * Custom parameter holding how many events a merged event stands for.
+     */
+    public static final String COUNT_PARAM = "e_count";
+
+    private final Tracker mTracker;
+    private final ScheduledExecutorService mExecutor;
+    private final Set<String> mCategories = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile long mWindow = 0;
+    // Guarded by this
+    private Map<Map<String, String>, Aggregate> mAggregates = new HashMap<>();
+    private boolean mFlushScheduled = false;
+    // Counts the windows so that the flush task of an already flushed one doesn't cut the next one short
+    private int mWindowId = 0;
+
+    EventAggregator(@NonNull Tracker tracker, @NonNull ScheduledExecutorService executor) {
+        mTracker = tracker;
+        mExecutor = executor;
+    }
+
+    /**
+     * @param window in milliseconds, 0 to disable aggregation, which is the default
+     * @return this (for chaining)
+     */
+    public EventAggregator setWindow(long window) {
+        mWindow = Math.max(0, window);
+        if (mWindow == 0)
+            flush();
+        return this;
+    }
+
+    public long getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Limits aggregation to events of the given categories.
+     * If none are added, events of all categories are aggregated.
+     *
+     * @param category value of {@link QueryParams#EVENT_CATEGORY}
+     * @return this (for chaining)
+     */
+    public EventAggregator addCategory(@NonNull String category) {
+        mCategories.add(category);
+        return this;
+    }
+
+    public EventAggregator removeCategory(@NonNull String category) {
+        mCategories.remove(category);
+        return this;
+    }
+
+    boolean isActive() {
+        return mWindow > 0;
+    }
+
+    /**
+     * @return true if the event was held back, false if it has to be tracked as is
+     */
+    boolean add(@NonNull TrackMe trackMe) {
+        String category = trackMe.get(QueryParams.EVENT_CATEGORY);
+        if (category == null || trackMe.getPriority() == Priority.CRITICAL || (!mCategories.isEmpty() && !mCategories.contains(category)))
+            return false;
+
+        Map<String, String> key = trackMe.toMap();
+        float value = 0;
+        String valueString = key.remove(QueryParams.EVENT_VALUE.toString());
+        if (valueString != null) {
+            try {
+                value = Float.parseFloat(valueString);
+            } catch (NumberFormatException e) {
+                // Can't be summed up
+                return false;
+            }
+        }
+
+        boolean scheduleFlush = false;
+        int windowId;
+        synchronized (this) {
+            Aggregate aggregate = mAggregates.get(key);
+            if (aggregate == null) {
+                mAggregates.put(key, new Aggregate(trackMe, value, valueString != null));
+            } else {
+                aggregate.add(value, valueString != null);
+            }
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                scheduleFlush = true;
+            }
+            windowId = mWindowId;
+        }
+        if (scheduleFlush) {
+            try {
+                mExecutor.schedule(new FlushTask(windowId), mWindow, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                Timber.tag(LOGGER_TAG).e(e, "Cannot schedule flush.");
+                flush();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tracks the merged events held back so far.
+     */
+    public void flush() {
+        List<Aggregate> aggregates;
+        synchronized (this) {
+            mFlushScheduled = false;
+            mWindowId++;
+            if (mAggregates.isEmpty())
+                return;
+            aggregates = new ArrayList<>(mAggregates.values());
+            mAggregates = new HashMap<>();
+        }
+        Timber.tag(LOGGER_TAG).d("Flushing %d aggregated events.", aggregates.size());
+        for (Aggregate aggregate : aggregates)
+            mTracker.handOver(aggregate.toTrackMe());
+    }
+
+    /**
+     * Ends the window it was scheduled for, unless that was flushed already.
+     */
+    private class FlushTask implements Runnable {
+        private final int mId;
+
+        FlushTask(int windowId) {
+            mId = windowId;
+        }
+
+        @Override
+        public void run() {
+            synchronized (EventAggregator.this) {
+                if (mWindowId != mId)
+                    return;
+            }
+            flush();
+        }
+    }
+
+    /**
+     * All events with the same parameters, apart from the value, seen during the current window.
+     */
+    private static class Aggregate {
+        final TrackMe mFirst;
+        float mSum;
+        boolean mHasValue;
+        int mCount = 1;
+
+        Aggregate(TrackMe first, float value, boolean hasValue) {
+            // The caller may reuse its TrackMe, the time is the one of the first event and not the one of the flush
+            mFirst = new TrackMe(first);
+            mFirst.trySet(QueryParams.DATETIME_OF_REQUEST, CachedDateFormat.now());
+            mSum = value;
+            mHasValue = hasValue;
+        }
+
+        void add(float value, boolean hasValue) {
+            mSum += value;
+            mHasValue |= hasValue;
+            mCount++;
+        }
+
+        TrackMe toTrackMe() {
+            if (mHasValue)
+                mFirst.set(QueryParams.EVENT_VALUE, mSum);
+            if (mCount > 1)
+                mFirst.set(COUNT_PARAM, Integer.toString(mCount));
+            return mFirst;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which events a {@link Tracker} keeps when only a fraction of them should be sent.
+ * <p/>
+ * The decision is a hash of the visitor id, so a visitor is either sampled in or out as a whole and visits are not biased.
+ * With {@link #setHashCategory(boolean)} the event category is hashed too, a visitor then keeps some categories and not others.
+ * Kept events carry their rate in {@link #RATE_PARAM} so the server can extrapolate.
+ * <p/>
+ * Keeps everything by default.
+ */
+public class EventSampler {
+    /**
+     * Custom parameter holding the rate a sampled event was kept at, e.g. 0.1 for one in ten.
+     */
+    public static final String RATE_PARAM = "sample_rate";
+
+    private final Map<String, Float> mCategoryRates = new ConcurrentHashMap<>();
+    private final AtomicLong mSampledOutCount = new AtomicLong();
+    private volatile float mDefaultRate = 1f;
+    private volatile boolean mHashCategory = false;
+    // False while every rate is 1, then events don't need to be looked at
+    private volatile boolean mActive = false;
+
+    /**
+     * @param rate fraction of events without a rate of their own to keep, between 0 and 1
+     * @return this (for chaining)
+     */
+    public EventSampler setDefaultRate(float rate) {
+        mDefaultRate = clamp(rate);
+        updateActive();
+        return this;
+    }
+
+    public float getDefaultRate() {
+        return mDefaultRate;
+    }
+
+    /**
+     * @param category value of {@link QueryParams#EVENT_CATEGORY}
+     * @param rate     fraction of events of this category to keep, between 0 and 1
+     * @return this (for chaining)
+     */
+    public EventSampler setCategoryRate(@NonNull String category, float rate) {
+        mCategoryRates.put(category, clamp(rate));
+        updateActive();
+        return this;
+    }
+
+    /**
+     * Events of this category fall back to the default rate again.
+     */
+    public EventSampler removeCategoryRate(@NonNull String category) {
+        mCategoryRates.remove(category);
+        updateActive();
+        return this;
+    }
+
+    /**
+     * @return the rate events of this category are kept at
+     */
+    public float getRate(@Nullable String category) {
+        if (category != null) {
+            Float rate = mCategoryRates.get(category);
+            if (rate != null)
+                return rate;
+        }
+        return mDefaultRate;
+    }
+
+    /**
+     * @param hashCategory true to decide per visitor and category, false to decide per visitor only, which is the default
+     * @return this (for chaining)
+     */
+    public EventSampler setHashCategory(boolean hashCategory) {
+        mHashCategory = hashCategory;
+        return this;
+    }
+
+    public boolean isHashCategory() {
+        return mHashCategory;
+    }
+
+    /**
+     * @return number of events that were sampled out
+     */
+    public long getSampledOutCount() {
+        return mSampledOutCount.get();
+    }
+
+    boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * Same input, same answer, on every device and in every process.
+     *
+     * @return true if the event should be tracked
+     */
+    boolean keep(@Nullable String visitorId, @Nullable String category, float rate) {
+        if (rate >= 1f)
+            return true;
+        if (rate > 0f && toUnitInterval(hash(visitorId, mHashCategory ? category : null)) < rate)
+            return true;
+        mSampledOutCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * FNV-1a over the chars followed by a 64-bit finalizer, String.hashCode() is too weak in its low bits.
+     */
+    static long hash(@Nullable String visitorId, @Nullable String category) {
+        long hash = 0xcbf29ce484222325L;
+        if (visitorId != null) {
+            for (int i = 0; i < visitorId.length(); i++) {
+                hash ^= visitorId.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        }
+        if (category != null) {
+            // Keeps ("ab", "c") apart from ("a", "bc")
+            hash ^= '\n';
+            hash *= 0x100000001b3L;
+            for (int i = 0; i < category.length(); i++) {
+                hash ^= category.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * @return the top 53 bits as a double in [0, 1)
+     */
+    static double toUnitInterval(long hash) {
+        return (hash >>> 11) * 0x1.0p-53;
+    }
+
+    private synchronized void updateActive() {
+        boolean active = mDefaultRate < 1f;
+        for (float rate : mCategoryRates.values())
+            active |= rate < 1f;
+        mActive = active;
+    }
+
+    private static float clamp(float rate) {
+        return Math.max(0f, Math.min(1f, rate));
+    }
+}
@@ -10,8 +10,18 @@ package org.piwik.sdk;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
+import org.piwik.sdk.dispatcher.DiskEventStore;
+import org.piwik.sdk.dispatcher.Dispatcher;
+import org.piwik.sdk.tools.BackgroundExecutor;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 
 
 public class Piwik {
@@ -21,9 +31,16 @@ public class Piwik {
     private final Context mContext;
     private boolean mOptOut = false;
     private boolean mDryRun = false;
+    private boolean mOfflineCaching = false;
+    private boolean mSharedDispatch = false;
 
     private static Piwik sInstance;
     private final SharedPreferences mSharedPreferences;
+    private VisitorCounters mVisitorCounters;
+    private BackgroundExecutor mExecutor;
+    private BackgroundExecutor mNetworkExecutor;
+    private final Map<String, Dispatcher> mSharedDispatchers = new HashMap<>();
+    private final Map<String, WeakReference<Dispatcher>> mEventStoreOwners = new HashMap<>();
 
     public static synchronized Piwik getInstance(Context context) {
         if (sInstance == null)
@@ -68,6 +85,7 @@ public class Piwik {
      * Use this to disable Piwik, e.g. if the user opted out of tracking.
      * Piwik will persist the choice and remain disable on next instance creation.</p>
      * The choice is stored in {@link #PREFERENCE_FILE_NAME} under the key {@link #PREFERENCE_KEY_OPTOUT}.
+     * During a {@link #setDryRun(boolean)} events are still built, but not queued.
      *
      * @param optOut true to disable reporting
      */
@@ -91,6 +109,9 @@ public class Piwik {
      * The dryRun flag set to true prevents any data from being sent to Piwik.
      * The dryRun flag should be set whenever you are testing or debugging an implementation and do not want
      * test data to appear in your Piwik reports. To set the dry run flag, use:
+     * <p/>
+     * A dry run ignores {@link #setOptOut(boolean)} while tracking: events are still sampled, aggregated and built,
+     * so that {@link Tracker#getLastEvent()} can be inspected. Opted out events are never queued or dispatched though.
      *
      * @param dryRun true if you don't want to send any data to piwik
      */
@@ -98,6 +119,80 @@ public class Piwik {
         mDryRun = dryRun;
     }
 
+    /**
+     * Events that were not dispatched yet are kept in the app's private storage and survive the process being killed.
+     * They are replayed by the next tracker created for the same tracking url and site id.
+     * Within one process only the first tracker for a tracking url and site id caches, others keep their events in memory.
+     * This only affects trackers created after the call.
+     *
+     * @param offlineCaching true to persist queued events
+     */
+    public void setOfflineCaching(boolean offlineCaching) {
+        mOfflineCaching = offlineCaching;
+    }
+
+    public boolean isOfflineCaching() {
+        return mOfflineCaching;
+    }
+
+    /**
+     * Trackers for the same tracking url and auth token share one {@link Dispatcher}, i.e. one queue and one upload pipeline.
+     * The bulk API accepts events of different site ids in one request, so apps tracking several sites need fewer requests.
+     * Dispatch settings changed through one of these trackers apply to all of them.
+     * This only affects trackers created after the call.
+     *
+     * @param sharedDispatch true to share dispatchers between trackers
+     */
+    public void setSharedDispatch(boolean sharedDispatch) {
+        mSharedDispatch = sharedDispatch;
+    }
+
+    public boolean isSharedDispatch() {
+        return mSharedDispatch;
+    }
+
+    /**
+     * @return the dispatcher shared by all trackers for this endpoint, created on first use
+     */
+    @NonNull
+    synchronized Dispatcher getSharedDispatcher(@NonNull URL apiUrl, String authToken) {
+        // Not keyed by URL itself, its equals() resolves host names
+        String key = apiUrl.toExternalForm() + "#" + authToken;
+        Dispatcher dispatcher = mSharedDispatchers.get(key);
+        if (dispatcher == null) {
+            dispatcher = new Dispatcher(this, apiUrl, authToken);
+            mSharedDispatchers.put(key, dispatcher);
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Two stores on one directory would replay the same events and write overlapping segments,
+     * so within this process a directory belongs to the first dispatcher that opens it.
+     *
+     * @param owner dispatcher the store will be set on
+     * @return a store for the directory, null if another dispatcher is using it
+     */
+    @Nullable
+    synchronized DiskEventStore openEventStore(@NonNull File directory, @NonNull Dispatcher owner) {
+        String key = directory.getAbsolutePath();
+        WeakReference<Dispatcher> reference = mEventStoreOwners.get(key);
+        Dispatcher current = reference != null ? reference.get() : null;
+        if (current != null && current != owner)
+            return null;
+        if (current == owner && owner.getEventStore() instanceof DiskEventStore)
+            return (DiskEventStore) owner.getEventStore();
+        mEventStoreOwners.put(key, new WeakReference<>(owner));
+        return new DiskEventStore(directory, getExecutor());
+    }
+
+    /**
+     * @return directory used for {@link #setOfflineCaching(boolean)}
+     */
+    protected File getCacheDir() {
+        return new File(getContext().getFilesDir(), "piwik_cache");
+    }
+
     public String getApplicationDomain() {
         return getContext().getPackageName();
     }
@@ -110,4 +205,42 @@ public class Piwik {
     public SharedPreferences getSharedPreferences() {
         return mSharedPreferences;
     }
+
+    /**
+     * The counters are read from {@link #getSharedPreferences()} on first use.
+     *
+     * @return visit counters shared by all trackers
+     */
+    @NonNull
+    public synchronized VisitorCounters getVisitorCounters() {
+        if (mVisitorCounters == null)
+            mVisitorCounters = new VisitorCounters(getSharedPreferences(), getExecutor());
+        return mVisitorCounters;
+    }
+
+    /**
+     * Disk writes, async tracking and other background work of all trackers runs on this.
+     * Its threads are started on demand and end when idle.
+     *
+     * @return executor shared by all trackers
+     */
+    @NonNull
+    public synchronized BackgroundExecutor getExecutor() {
+        if (mExecutor == null)
+            mExecutor = new BackgroundExecutor(BackgroundExecutor.DEFAULT_THREADS, "Piwik");
+        return mExecutor;
+    }
+
+    /**
+     * Dispatching of all trackers runs on this, apart from {@link #getExecutor()}.
+     * Requests may block for the whole connection timeout, during a server outage they must not hold up the other work.
+     *
+     * @return executor shared by all dispatchers
+     */
+    @NonNull
+    public synchronized BackgroundExecutor getNetworkExecutor() {
+        if (mNetworkExecutor == null)
+            mNetworkExecutor = new BackgroundExecutor(BackgroundExecutor.DEFAULT_NETWORK_THREADS, "Piwik-Network");
+        return mNetworkExecutor;
+    }
 }
@@ -0,0 +1,157 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets that keep a runaway loop in the app from flooding the queue and the Piwik server.
+ * <p/>
+ * Each {@link EventType} has its own bucket, holding up to a burst of events and refilled at a sustained rate.
+ * Events that find their bucket empty are throttled, i.e. dropped and counted.
+ * Buckets are updated by compare-and-set, tracking from many threads never blocks on them.
+ * <p/>
+ * Unlimited by default.
+ */
+public class RateLimiter {
+    private static final EventType[] TYPES = EventType.values();
+
+    public enum EventType {
+        SCREEN,
+        EVENT,
+        EXCEPTION,
+        /**
+         * Goals, orders and cart updates.
+         */
+        ECOMMERCE,
+        /**
+         * Everything else, e.g. outlinks, downloads and content tracking.
+         */
+        OTHER
+    }
+
+    private final Bucket[] mBuckets = new Bucket[TYPES.length];
+    private volatile boolean mActive = false;
+
+    public RateLimiter() {
+        for (int i = 0; i < mBuckets.length; i++)
+            mBuckets[i] = new Bucket();
+    }
+
+    /**
+     * @param type            bucket to configure
+     * @param eventsPerSecond sustained rate, 0 or less to remove the limit
+     * @param burst           events that may be tracked at once after a quiet period, at least 1
+     * @return this (for chaining)
+     */
+    public RateLimiter setLimit(@NonNull EventType type, double eventsPerSecond, int burst) {
+        Bucket bucket = mBuckets[type.ordinal()];
+        synchronized (this) {
+            bucket.setLimit(eventsPerSecond, burst);
+            boolean active = false;
+            for (Bucket each : mBuckets)
+                active |= each.isLimited();
+            mActive = active;
+        }
+        return this;
+    }
+
+    /**
+     * Same limit for all event types.
+     */
+    public RateLimiter setLimit(double eventsPerSecond, int burst) {
+        for (EventType type : TYPES)
+            setLimit(type, eventsPerSecond, burst);
+        return this;
+    }
+
+    /**
+     * @return number of events of this type that were throttled
+     */
+    public long getThrottledCount(@NonNull EventType type) {
+        return mBuckets[type.ordinal()].mThrottled.get();
+    }
+
+    public long getThrottledCount() {
+        long count = 0;
+        for (Bucket bucket : mBuckets)
+            count += bucket.mThrottled.get();
+        return count;
+    }
+
+    boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * @return true if the event may be tracked, false if it was throttled
+     */
+    boolean tryAcquire(@NonNull TrackMe trackMe) {
+        return mBuckets[classify(trackMe).ordinal()].tryAcquire(System.nanoTime());
+    }
+
+    @NonNull
+    static EventType classify(@NonNull TrackMe trackMe) {
+        if (trackMe.has(QueryParams.GOAL_ID) || trackMe.has(QueryParams.ECOMMERCE_ITEMS) || trackMe.has(QueryParams.ORDER_ID))
+            return EventType.ECOMMERCE;
+        String category = trackMe.get(QueryParams.EVENT_CATEGORY);
+        if (category != null)
+            return "Exception".equals(category) ? EventType.EXCEPTION : EventType.EVENT;
+        if (trackMe.has(QueryParams.LINK) || trackMe.has(QueryParams.DOWNLOAD) || trackMe.has(QueryParams.CONTENT_NAME))
+            return EventType.OTHER;
+        return EventType.SCREEN;
+    }
+
+    /**
+     * Token bucket in the form of the generic cell rate algorithm: instead of a token count it keeps the time
+     * at which the bucket will be full again, which fits into one AtomicLong.
+     */
+    static class Bucket {
+        // Time between two tokens and how far the full time may lie ahead, in nanoseconds
+        private volatile long mInterval = 0;
+        private volatile long mTolerance = 0;
+        private final AtomicLong mFullAt = new AtomicLong(Long.MIN_VALUE);
+        final AtomicLong mThrottled = new AtomicLong();
+
+        void setLimit(double eventsPerSecond, int burst) {
+            if (eventsPerSecond <= 0) {
+                mInterval = 0;
+                return;
+            }
+            long interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / eventsPerSecond));
+            mTolerance = interval * Math.max(1, burst);
+            mInterval = interval;
+            mFullAt.set(Long.MIN_VALUE);
+        }
+
+        boolean isLimited() {
+            return mInterval > 0;
+        }
+
+        boolean tryAcquire(long now) {
+            long interval = mInterval;
+            if (interval == 0)
+                return true;
+            long tolerance = mTolerance;
+            while (true) {
+                long fullAt = mFullAt.get();
+                // A full bucket doesn't save up more tokens
+                long next = (fullAt == Long.MIN_VALUE || fullAt - now < 0 ? now : fullAt) + interval;
+                if (next - now > tolerance) {
+                    mThrottled.incrementAndGet();
+                    return false;
+                }
+                if (mFullAt.compareAndSet(fullAt, next))
+                    return true;
+            }
+        }
+    }
+}
@@ -10,6 +10,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
+import org.piwik.sdk.dispatcher.Priority;
 import org.piwik.sdk.ecommerce.EcommerceItems;
 import org.piwik.sdk.tools.ActivityHelper;
 import org.piwik.sdk.tools.CurrencyFormatter;
@@ -38,6 +39,17 @@ public class TrackHelper {
         return new TrackHelper(base);
     }
 
+    /**
+     * Goals and orders are {@link Priority#CRITICAL} by default, everything else {@link Priority#NORMAL}.
+     *
+     * @param priority of the events built by this helper
+     * @return this object to allow chaining calls
+     */
+    public TrackHelper priority(@NonNull Priority priority) {
+        mBaseTrackMe.setPriority(priority);
+        return this;
+    }
+
     static abstract class BaseEvent {
 
         private final TrackHelper mBaseBuilder;
@@ -232,7 +244,7 @@ public class TrackHelper {
         @Override
         public TrackMe build() {
             if (mIdGoal < 0) return null;
-            TrackMe trackMe = new TrackMe(getBaseTrackMe()).set(QueryParams.GOAL_ID, mIdGoal);
+            TrackMe trackMe = new TrackMe(getBaseTrackMe()).set(QueryParams.GOAL_ID, mIdGoal).trySetPriority(Priority.CRITICAL);
             if (mRevenue != null) trackMe.set(QueryParams.REVENUE, mRevenue);
             return trackMe;
         }
@@ -559,7 +571,8 @@ public class TrackHelper {
                     .set(QueryParams.SUBTOTAL, CurrencyFormatter.priceString(mSubTotal))
                     .set(QueryParams.TAX, CurrencyFormatter.priceString(mTax))
                     .set(QueryParams.SHIPPING, CurrencyFormatter.priceString(mShipping))
-                    .set(QueryParams.DISCOUNT, CurrencyFormatter.priceString(mDiscount));
+                    .set(QueryParams.DISCOUNT, CurrencyFormatter.priceString(mDiscount))
+                    .trySetPriority(Priority.CRITICAL);
         }
     }
 
@@ -9,29 +9,63 @@ package org.piwik.sdk;
 
 import android.support.annotation.NonNull;
 
+import org.piwik.sdk.dispatcher.Priority;
+import org.piwik.sdk.tools.PercentEncoder;
+
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
  * This objects represents one query to Piwik.
  * For each event send to Piwik a TrackMe gets created, either explicitly by you or implicitly by the Tracker.
+ * <p/>
+ * Values of {@link QueryParams} are kept in an array indexed by their ordinal, only other keys (e.g. custom dimensions) need a map.
  */
 public class TrackMe {
-    private static final int DEFAULT_QUERY_CAPACITY = 14;
-    private final HashMap<String, String> mQueryParams = new HashMap<>(DEFAULT_QUERY_CAPACITY);
+    private static final QueryParams[] PARAMS = QueryParams.values();
+    private static final Map<String, QueryParams> PARAMS_BY_KEY = new HashMap<>();
+
+    static {
+        for (QueryParams param : PARAMS)
+            PARAMS_BY_KEY.put(param.toString(), param);
+    }
+
+    private final String[] mValues = new String[PARAMS.length];
+    private Map<String, String> mCustomParams;
+    // Null until set, which counts as Priority.NORMAL
+    private Priority mPriority;
+    // Changes whenever a value does
+    private volatile int mVersion = 0;
+    // Values this event shares with the tracker defaults are taken from there already encoded
+    private String[] mDefaultValues;
+    private String[] mEncodedDefaults;
 
     public TrackMe() {
     }
 
     public TrackMe(TrackMe trackMe) {
-        mQueryParams.putAll(trackMe.mQueryParams);
+        synchronized (trackMe) {
+            System.arraycopy(trackMe.mValues, 0, mValues, 0, mValues.length);
+            if (trackMe.mCustomParams != null)
+                mCustomParams = new LinkedHashMap<>(trackMe.mCustomParams);
+            mPriority = trackMe.mPriority;
+        }
     }
 
     protected synchronized TrackMe set(@NonNull String key, String value) {
-        if (value == null)
-            mQueryParams.remove(key);
-        else if (value.length() > 0)
-            mQueryParams.put(key, value);
+        QueryParams param = PARAMS_BY_KEY.get(key);
+        if (param != null) {
+            set(param, value);
+        } else if (value == null) {
+            if (mCustomParams != null && mCustomParams.remove(key) != null)
+                mVersion++;
+        } else if (value.length() > 0) {
+            if (mCustomParams == null)
+                mCustomParams = new LinkedHashMap<>();
+            if (!value.equals(mCustomParams.put(key, value)))
+                mVersion++;
+        }
         return this;
     }
 
@@ -49,7 +83,16 @@ public class TrackMe {
      * @return tracker instance
      */
     public synchronized TrackMe set(@NonNull QueryParams key, String value) {
-        set(key.toString(), value);
+        String previous = mValues[key.ordinal()];
+        if (value == null) {
+            if (previous != null) {
+                mValues[key.ordinal()] = null;
+                mVersion++;
+            }
+        } else if (value.length() > 0 && !value.equals(previous)) {
+            mValues[key.ordinal()] = value;
+            mVersion++;
+        }
         return this;
     }
 
@@ -69,7 +112,7 @@ public class TrackMe {
     }
 
     public synchronized boolean has(@NonNull QueryParams queryParams) {
-        return mQueryParams.containsKey(queryParams.toString());
+        return mValues[queryParams.ordinal()] != null;
     }
 
     /**
@@ -106,7 +149,7 @@ public class TrackMe {
      * @return this (for chaining)
      */
     public synchronized TrackMe trySet(@NonNull QueryParams key, String value) {
-        if (!has(key))
+        if (mValues[key.ordinal()] == null)
             set(key, value);
         return this;
     }
@@ -117,11 +160,118 @@ public class TrackMe {
      * @return the parameter map, but without the base URL
      */
     public synchronized Map<String, String> toMap() {
-        return new HashMap<>(mQueryParams);
+        // Same order as appendQuery()
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < mValues.length; i++) {
+            if (mValues[i] != null)
+                map.put(PARAMS[i].toString(), mValues[i]);
+        }
+        if (mCustomParams != null)
+            map.putAll(mCustomParams);
+        return map;
+    }
+
+    /**
+     * Appends the percent-encoded parameters without building a map, each as {@code &key=value}.
+     */
+    public synchronized void appendQuery(@NonNull StringBuilder sb) {
+        for (int i = 0; i < mValues.length; i++) {
+            if (mValues[i] == null)
+                continue;
+            if (mDefaultValues != null && mValues[i].equals(mDefaultValues[i])) {
+                String encoded = mEncodedDefaults[i];
+                if (encoded == null) {
+                    // Other threads may do the same at the same time, Strings are safe to publish that way
+                    encoded = "&" + PercentEncoder.encode(PARAMS[i].toString()) + "=" + PercentEncoder.encode(mValues[i]);
+                    mEncodedDefaults[i] = encoded;
+                }
+                sb.append(encoded);
+                continue;
+            }
+            sb.append('&');
+            PercentEncoder.append(sb, PARAMS[i].toString());
+            sb.append('=');
+            PercentEncoder.append(sb, mValues[i]);
+        }
+        if (mCustomParams == null)
+            return;
+        for (Map.Entry<String, String> entry : mCustomParams.entrySet()) {
+            sb.append('&');
+            PercentEncoder.append(sb, entry.getKey());
+            sb.append('=');
+            PercentEncoder.append(sb, entry.getValue());
+        }
     }
 
     public synchronized String get(@NonNull QueryParams queryParams) {
-        return mQueryParams.get(queryParams.toString());
+        return mValues[queryParams.ordinal()];
+    }
+
+    /**
+     * Decides how soon the event is dispatched and which events are given up first if the queue is full.
+     * Not sent to Piwik.
+     *
+     * @param priority default is {@link Priority#NORMAL}
+     * @return this (for chaining)
+     */
+    public synchronized TrackMe setPriority(@NonNull Priority priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    @NonNull
+    public synchronized Priority getPriority() {
+        return mPriority != null ? mPriority : Priority.NORMAL;
+    }
+
+    /**
+     * Only sets the priority if none was set explicitly.
+     */
+    synchronized TrackMe trySetPriority(@NonNull Priority priority) {
+        if (mPriority == null)
+            mPriority = priority;
+        return this;
+    }
+
+    /**
+     * @return changes whenever a value is set, removed or replaced by a different one
+     */
+    int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return the values of all {@link QueryParams}, indexed by ordinal
+     */
+    synchronized String[] copyValues() {
+        return mValues.clone();
+    }
+
+    /**
+     * Lets {@link #appendQuery(StringBuilder)} reuse the encoded form of values equal to the defaults.
+     *
+     * @param values  indexed by ordinal, as returned by {@link #copyValues()}
+     * @param encoded same size, filled in on demand with {@code &key=value} and shared by all events using these defaults
+     */
+    synchronized void useEncodedDefaults(@NonNull String[] values, @NonNull String[] encoded) {
+        mDefaultValues = values;
+        mEncodedDefaults = encoded;
+    }
+
+    /**
+     * Like {@link #trySet(QueryParams, String)} for each of the keys, in one go.
+     *
+     * @param values indexed by ordinal, as returned by {@link #copyValues()}
+     */
+    synchronized TrackMe trySetAll(@NonNull String[] values, @NonNull QueryParams[] keys) {
+        for (QueryParams key : keys) {
+            int index = key.ordinal();
+            if (mValues[index] == null && values[index] != null && values[index].length() > 0) {
+                mValues[index] = values[index];
+                mVersion++;
+            }
+        }
+        return this;
     }
 
 }
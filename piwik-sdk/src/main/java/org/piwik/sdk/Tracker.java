@@ -9,19 +9,32 @@ package org.piwik.sdk;
 
 import android.content.SharedPreferences;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
 
+import org.piwik.sdk.dispatcher.CircuitBreaker;
+import org.piwik.sdk.dispatcher.DiskEventStore;
+import org.piwik.sdk.dispatcher.DispatchScheduler;
 import org.piwik.sdk.dispatcher.Dispatcher;
+import org.piwik.sdk.dispatcher.Event;
+import org.piwik.sdk.dispatcher.EventQueue;
+import org.piwik.sdk.dispatcher.PageSizer;
+import org.piwik.sdk.dispatcher.RetryPolicy;
+import org.piwik.sdk.dispatcher.Transport;
+import org.piwik.sdk.tools.CachedDateFormat;
+import org.piwik.sdk.tools.Checksum;
 import org.piwik.sdk.tools.DeviceHelper;
 
+import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -46,6 +59,17 @@ public class Tracker {
     protected static final String PREF_KEY_TRACKER_VISITCOUNT = "tracker.visitcount";
     protected static final String PREF_KEY_TRACKER_PREVIOUSVISIT = "tracker.previousvisit";
 
+    // Taken from the default TrackMe for the first event of a session
+    private static final QueryParams[] SESSION_PARAMS = {
+            QueryParams.SESSION_START, QueryParams.SCREEN_RESOLUTION, QueryParams.USER_AGENT, QueryParams.LANGUAGE, QueryParams.COUNTRY,
+            QueryParams.FIRST_VISIT_TIMESTAMP, QueryParams.TOTAL_NUMBER_OF_VISITS, QueryParams.PREVIOUS_VISIT_TIMESTAMP
+    };
+    // Taken from the defaults for every event
+    private static final QueryParams[] BASE_PARAMS = {
+            QueryParams.SITE_ID, QueryParams.RECORD, QueryParams.API_VERSION, QueryParams.SEND_IMAGE,
+            QueryParams.VISITOR_ID, QueryParams.USER_ID
+    };
+
     private final Piwik mPiwik;
 
     /**
@@ -58,16 +82,25 @@ public class Tracker {
      */
     private final int mSiteId;
     private final String mAuthToken;
-    private final Object mSessionLock = new Object();
     private final CustomVariables mVisitCustomVariable = new CustomVariables();
     private final Dispatcher mDispatcher;
+    private final boolean mSharedDispatch;
     private final Random mRandomAntiCachingValue = new Random(new Date().getTime());
     private final TrackMe mDefaultTrackMe = new TrackMe();
+    private volatile Defaults mDefaults;
+    // Kept apart from the defaults, nearly every screen view changes it. Merged into them by getDefaultTrackMe().
+    private final AtomicReference<String> mLastUrlPath = new AtomicReference<>();
+    private final VisitorCounters mVisitorCounters;
 
     private String mLastEvent;
     private String mApplicationDomain;
-    private long mSessionTimeout = 30 * 60 * 1000;
-    private long mSessionStartTime;
+    private volatile long mSessionTimeout = 30 * 60 * 1000;
+    private final AtomicReference<Session> mSession = new AtomicReference<>(new Session(0, 0, SessionStart.DONE, false));
+    private volatile boolean mAsyncTracking = false;
+    private volatile AsyncTrackQueue mAsyncQueue;
+    private final EventSampler mSampler = new EventSampler();
+    private final EventAggregator mAggregator;
+    private final RateLimiter mRateLimiter = new RateLimiter();
 
     /**
      * Use Piwik.newTracker() method to create new trackers
@@ -92,8 +125,13 @@ public class Tracker {
         mPiwik = piwik;
         mSiteId = siteId;
         mAuthToken = authToken;
+        mVisitorCounters = mPiwik.getVisitorCounters();
+        mAggregator = new EventAggregator(this, mPiwik.getExecutor());
 
-        mDispatcher = new Dispatcher(mPiwik, mApiUrl, authToken);
+        mSharedDispatch = mPiwik.isSharedDispatch();
+        mDispatcher = mSharedDispatch ? mPiwik.getSharedDispatcher(mApiUrl, authToken) : new Dispatcher(mPiwik, mApiUrl, authToken);
+        if (mPiwik.isOfflineCaching())
+            openEventStore();
 
         String userId = getSharedPreferences().getString(PREF_KEY_TRACKER_USERID, null);
         if (userId == null) {
@@ -137,30 +175,65 @@ public class Tracker {
      * Piwik will use the content of this object to fill in missing values before any transmission.
      * While you can modify it's values, you can also just set them in your {@link TrackMe} object as already set values will not be overwritten.
      *
-     * @return the default TrackMe object
+     * @return the default TrackMe object, its {@link QueryParams#URL_PATH} is the url of the last tracked event
      */
     public TrackMe getDefaultTrackMe() {
+        String lastUrlPath = mLastUrlPath.get();
+        // Only when asked for, writing it on every event would invalidate the defaults snapshot each time
+        if (lastUrlPath != null && mLastUrlPath.compareAndSet(lastUrlPath, null))
+            mDefaultTrackMe.set(QueryParams.URL_PATH, lastUrlPath);
         return mDefaultTrackMe;
     }
 
     public void startNewSession() {
-        synchronized (mSessionLock) {
-            mSessionStartTime = 0;
-        }
+        Session session;
+        do {
+            session = mSession.get();
+        } while (!mSession.compareAndSet(session, new Session(session.mEpoch, 0, session.mStart, false)));
     }
 
     public void setSessionTimeout(int milliseconds) {
-        synchronized (mSessionLock) {
-            mSessionTimeout = milliseconds;
-        }
+        mSessionTimeout = milliseconds;
     }
 
+    /**
+     * Only for tests, a session begun here counts as started right away as there is no event to send first.
+     *
+     * @return true if a new session began
+     */
     protected boolean tryNewSession() {
-        synchronized (mSessionLock) {
-            boolean expired = System.currentTimeMillis() - mSessionStartTime > mSessionTimeout;
-            // Update the session timer
-            mSessionStartTime = System.currentTimeMillis();
-            return expired;
+        Session session = touchSession(System.currentTimeMillis());
+        if (session.mNew)
+            session.mStart.mDone = true;
+        return session.mNew;
+    }
+
+    /**
+     * @return number of sessions begun so far
+     */
+    @VisibleForTesting
+    public long getSessionEpoch() {
+        return mSession.get().mEpoch;
+    }
+
+    /**
+     * Refreshes the session timer and begins a new session (epoch) if it expired, exactly one caller gets the new one.
+     */
+    private Session touchSession(long now) {
+        while (true) {
+            Session session = mSession.get();
+            if (now - session.mLastActivity > mSessionTimeout) {
+                SessionStart start = new SessionStart();
+                if (mSession.compareAndSet(session, new Session(session.mEpoch + 1, now, start, false)))
+                    return new Session(session.mEpoch + 1, now, start, true);
+            } else if (now <= session.mLastActivity) {
+                // Nothing to update, saves an allocation for bursts within the same millisecond
+                return session;
+            } else {
+                Session next = new Session(session.mEpoch, now, session.mStart, false);
+                if (mSession.compareAndSet(session, next))
+                    return next;
+            }
         }
     }
 
@@ -188,18 +261,188 @@ public class Tracker {
     }
 
     /**
-     * Processes all queued events in background thread
+     * {@link Dispatcher#setCompression(boolean)}
+     */
+    public Tracker setDispatchCompression(boolean compression) {
+        mDispatcher.setCompression(compression);
+        return this;
+    }
+
+    /**
+     * {@link Dispatcher#isCompression()}
+     */
+    public boolean isDispatchCompression() {
+        return mDispatcher.isCompression();
+    }
+
+    /**
+     * {@link Dispatcher#setTransport(Transport)}
+     */
+    public Tracker setDispatchTransport(@Nullable Transport transport) {
+        mDispatcher.setTransport(transport);
+        return this;
+    }
+
+    /**
+     * {@link Dispatcher#getTransport()}
+     */
+    @NonNull
+    public Transport getDispatchTransport() {
+        return mDispatcher.getTransport();
+    }
+
+    /**
+     * {@link Dispatcher#setCompactBulkFormat(boolean)}
+     */
+    public Tracker setCompactBulkFormat(boolean compact) {
+        mDispatcher.setCompactBulkFormat(compact);
+        return this;
+    }
+
+    /**
+     * {@link Dispatcher#isCompactBulkFormat()}
+     */
+    public boolean isCompactBulkFormat() {
+        return mDispatcher.isCompactBulkFormat();
+    }
+
+    /**
+     * {@link Dispatcher#setCriticalLinger(long)}
+     */
+    public Tracker setCriticalLinger(long linger) {
+        mDispatcher.setCriticalLinger(linger);
+        return this;
+    }
+
+    /**
+     * {@link Dispatcher#getCriticalLinger()}
+     */
+    public long getCriticalLinger() {
+        return mDispatcher.getCriticalLinger();
+    }
+
+    /**
+     * {@link Dispatcher#setBulkDelay(long)}
+     */
+    public Tracker setBulkDelay(long bulkDelay) {
+        mDispatcher.setBulkDelay(bulkDelay);
+        return this;
+    }
+
+    /**
+     * {@link Dispatcher#getBulkDelay()}
+     */
+    public long getBulkDelay() {
+        return mDispatcher.getBulkDelay();
+    }
+
+    /**
+     * Defers dispatching while offline and adapts the dispatch interval to the network type and charging state.
+     * {@link Dispatcher#setScheduler(DispatchScheduler)}
+     */
+    public Tracker setNetworkAwareDispatch(boolean networkAware) {
+        if (networkAware != isNetworkAwareDispatch())
+            mDispatcher.setScheduler(networkAware ? new DispatchScheduler(mPiwik.getContext()) : null);
+        return this;
+    }
+
+    public boolean isNetworkAwareDispatch() {
+        return mDispatcher.getScheduler() != null;
+    }
+
+    /**
+     * {@link Dispatcher#getScheduler()}
+     *
+     * @return the scheduler to tune network aware dispatching or null if it's disabled
+     */
+    @Nullable
+    public DispatchScheduler getDispatchScheduler() {
+        return mDispatcher.getScheduler();
+    }
+
+    /**
+     * Sends only a fraction of the events, see {@link EventSampler}.
+     *
+     * @return the sampler of this tracker, keeps everything until configured
+     */
+    @NonNull
+    public EventSampler getSampler() {
+        return mSampler;
+    }
+
+    /**
+     * Limits how many events per second are tracked, see {@link RateLimiter}.
+     *
+     * @return the rate limiter of this tracker, unlimited until configured
+     */
+    @NonNull
+    public RateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * Merges repetitive events, see {@link EventAggregator}.
+     *
+     * @return the aggregator of this tracker, disabled until a window is set
+     */
+    @NonNull
+    public EventAggregator getAggregator() {
+        return mAggregator;
+    }
+
+    /**
+     * Processes all queued events in background thread.
+     * Events held back by the {@link #getAggregator()} are part of it.
      *
      * @return true if there are any queued events and opt out is inactive
      */
     public boolean dispatch() {
+        mAggregator.flush();
         if (!mPiwik.isOptOut()) {
-            mDispatcher.forceDispatch();
+            AsyncTrackQueue asyncQueue = mAsyncQueue;
+            if (asyncQueue != null) {
+                // Events still waiting for the async tracking thread should be part of it
+                asyncQueue.requestDispatch();
+            } else {
+                mDispatcher.forceDispatch();
+            }
             return true;
         }
         return false;
     }
 
+    void dispatchNow() {
+        if (!mPiwik.isOptOut())
+            mDispatcher.forceDispatch();
+    }
+
+    /**
+     * In async mode {@link #track(TrackMe)} only hands the event over to a background thread and returns immediately.
+     * That thread adds the default parameters, encodes and queues the events in the order they were tracked.
+     * If more than 1024 events are waiting, further ones are dropped, see {@link #getAsyncDroppedEventCount()}.
+     * Default is false.
+     *
+     * @param asyncTracking true to track in the background
+     */
+    public synchronized Tracker setAsyncTracking(boolean asyncTracking) {
+        if (asyncTracking && mAsyncQueue == null)
+            mAsyncQueue = new AsyncTrackQueue(this, mPiwik.getExecutor(), AsyncTrackQueue.DEFAULT_CAPACITY);
+        mAsyncTracking = asyncTracking;
+        return this;
+    }
+
+    public boolean isAsyncTracking() {
+        return mAsyncTracking;
+    }
+
+    /**
+     * @return number of events dropped because the async tracking thread fell behind
+     */
+    public long getAsyncDroppedEventCount() {
+        AsyncTrackQueue asyncQueue = mAsyncQueue;
+        return asyncQueue != null ? asyncQueue.getDroppedCount() : 0;
+    }
+
     /**
      * Set the interval to 0 to dispatch events as soon as they are queued.
      * If a negative value is used the dispatch timer will never run, a manual dispatch must be used.
@@ -218,6 +461,54 @@ public class Tracker {
         return mDispatcher.getDispatchInterval();
     }
 
+    /**
+     * Bounds the queue of events waiting for dispatch, see {@link Dispatcher#setMaxQueueSize(int)} and {@link Dispatcher#setMaxQueueBytes(long)}.
+     * {@link EventQueue.OverflowPolicy#SPILL_TO_DISK} enables the offline cache of this tracker if it wasn't already.
+     *
+     * @param maxEvents -1 for no limit
+     * @param maxBytes  -1 for no limit
+     * @param policy    what to do with events that don't fit
+     */
+    public Tracker setDispatchQueueLimit(int maxEvents, long maxBytes, @NonNull EventQueue.OverflowPolicy policy) {
+        if (policy == EventQueue.OverflowPolicy.SPILL_TO_DISK)
+            openEventStore();
+        mDispatcher.setOverflowPolicy(policy);
+        mDispatcher.setMaxQueueSize(maxEvents);
+        mDispatcher.setMaxQueueBytes(maxBytes);
+        return this;
+    }
+
+    /**
+     * {@link Dispatcher#getDroppedEventCount()}
+     */
+    public long getDroppedEventCount() {
+        return mDispatcher.getDroppedEventCount();
+    }
+
+    /**
+     * {@link Dispatcher#getRetryPolicy()}
+     */
+    @NonNull
+    public RetryPolicy getRetryPolicy() {
+        return mDispatcher.getRetryPolicy();
+    }
+
+    /**
+     * {@link Dispatcher#getCircuitBreaker()}
+     */
+    @NonNull
+    public CircuitBreaker getCircuitBreaker() {
+        return mDispatcher.getCircuitBreaker();
+    }
+
+    /**
+     * {@link Dispatcher#getPageSizer()}
+     */
+    @NonNull
+    public PageSizer getPageSizer() {
+        return mDispatcher.getPageSizer();
+    }
+
     /**
      * Defines the User ID for this request.
      * User ID is any non empty unique string identifying the user (such as an email address or a username).
@@ -278,6 +569,7 @@ public class Tracker {
      */
     public Tracker setApplicationDomain(String domain) {
         mApplicationDomain = domain;
+        mLastUrlPath.set(null);
         mDefaultTrackMe.set(QueryParams.URL_PATH, fixUrl(null, getApplicationBaseURL()));
         return this;
     }
@@ -290,72 +582,69 @@ public class Tracker {
      * There parameters are only interesting for the very first query.
      */
     private void injectInitialParams(TrackMe trackMe) {
-        long firstVisitTime;
-        int visitCount;
-        long previousVisit;
-
-        // Protected against Trackers on other threads trying to do the same thing.
-        // This works because they would use the same preference object.
-        synchronized (getSharedPreferences()) {
-            visitCount = 1 + getSharedPreferences().getInt(PREF_KEY_TRACKER_VISITCOUNT, 0);
-            getSharedPreferences().edit().putInt(PREF_KEY_TRACKER_VISITCOUNT, visitCount).apply();
-        }
-
-        synchronized (getSharedPreferences()) {
-            firstVisitTime = getSharedPreferences().getLong(PREF_KEY_TRACKER_FIRSTVISIT, -1);
-            if (firstVisitTime == -1) {
-                firstVisitTime = System.currentTimeMillis() / 1000;
-                getSharedPreferences().edit().putLong(PREF_KEY_TRACKER_FIRSTVISIT, firstVisitTime).apply();
-            }
-        }
-
-        synchronized (getSharedPreferences()) {
-            previousVisit = getSharedPreferences().getLong(PREF_KEY_TRACKER_PREVIOUSVISIT, -1);
-            getSharedPreferences().edit().putLong(PREF_KEY_TRACKER_PREVIOUSVISIT, System.currentTimeMillis() / 1000).apply();
-        }
+        VisitorCounters.Visit visit = mVisitorCounters.startVisit(System.currentTimeMillis() / 1000);
 
         // trySet because the developer could have modded these after creating the Tracker
-        mDefaultTrackMe.trySet(QueryParams.FIRST_VISIT_TIMESTAMP, firstVisitTime);
-        mDefaultTrackMe.trySet(QueryParams.TOTAL_NUMBER_OF_VISITS, visitCount);
-        if (previousVisit != -1)
-            mDefaultTrackMe.trySet(QueryParams.PREVIOUS_VISIT_TIMESTAMP, previousVisit);
+        mDefaultTrackMe.trySet(QueryParams.FIRST_VISIT_TIMESTAMP, visit.getFirstVisit());
+        mDefaultTrackMe.trySet(QueryParams.TOTAL_NUMBER_OF_VISITS, visit.getVisitCount());
+        if (visit.getPreviousVisit() != -1)
+            mDefaultTrackMe.trySet(QueryParams.PREVIOUS_VISIT_TIMESTAMP, visit.getPreviousVisit());
 
-        trackMe.trySet(QueryParams.SESSION_START, mDefaultTrackMe.get(QueryParams.SESSION_START));
-        trackMe.trySet(QueryParams.SCREEN_RESOLUTION, mDefaultTrackMe.get(QueryParams.SCREEN_RESOLUTION));
-        trackMe.trySet(QueryParams.USER_AGENT, mDefaultTrackMe.get(QueryParams.USER_AGENT));
-        trackMe.trySet(QueryParams.LANGUAGE, mDefaultTrackMe.get(QueryParams.LANGUAGE));
-        trackMe.trySet(QueryParams.COUNTRY, mDefaultTrackMe.get(QueryParams.COUNTRY));
-        trackMe.trySet(QueryParams.FIRST_VISIT_TIMESTAMP, mDefaultTrackMe.get(QueryParams.FIRST_VISIT_TIMESTAMP));
-        trackMe.trySet(QueryParams.TOTAL_NUMBER_OF_VISITS, mDefaultTrackMe.get(QueryParams.TOTAL_NUMBER_OF_VISITS));
-        trackMe.trySet(QueryParams.PREVIOUS_VISIT_TIMESTAMP, mDefaultTrackMe.get(QueryParams.PREVIOUS_VISIT_TIMESTAMP));
+        trackMe.trySetAll(getDefaults().mValues, SESSION_PARAMS);
     }
 
     /**
      * These parameters are required for all queries.
      */
     private void injectBaseParams(TrackMe trackMe) {
-        trackMe.trySet(QueryParams.SITE_ID, mSiteId);
-        trackMe.trySet(QueryParams.RECORD, DEFAULT_RECORD_VALUE);
-        trackMe.trySet(QueryParams.API_VERSION, DEFAULT_API_VERSION_VALUE);
+        Defaults defaults = getDefaults();
+        trackMe.trySetAll(defaults.mValues, BASE_PARAMS);
+        trackMe.useEncodedDefaults(defaults.mValues, defaults.mEncoded);
         trackMe.trySet(QueryParams.RANDOM_NUMBER, mRandomAntiCachingValue.nextInt(100000));
-        trackMe.trySet(QueryParams.DATETIME_OF_REQUEST, new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ").format(new Date()));
-        trackMe.trySet(QueryParams.SEND_IMAGE, "0");
-
-        trackMe.trySet(QueryParams.VISITOR_ID, mDefaultTrackMe.get(QueryParams.VISITOR_ID));
-        trackMe.trySet(QueryParams.USER_ID, mDefaultTrackMe.get(QueryParams.USER_ID));
+        trackMe.trySet(QueryParams.DATETIME_OF_REQUEST, CachedDateFormat.now());
 
         trackMe.trySet(QueryParams.VISIT_SCOPE_CUSTOM_VARIABLES, mVisitCustomVariable.toString());
 
         String urlPath = trackMe.get(QueryParams.URL_PATH);
         if (urlPath == null) {
-            urlPath = mDefaultTrackMe.get(QueryParams.URL_PATH);
+            urlPath = mLastUrlPath.get();
+            if (urlPath == null)
+                urlPath = defaults.mValues[QueryParams.URL_PATH.ordinal()];
         } else {
             urlPath = fixUrl(urlPath, getApplicationBaseURL());
-            mDefaultTrackMe.set(QueryParams.URL_PATH, urlPath);
+            mLastUrlPath.set(urlPath);
         }
         trackMe.set(QueryParams.URL_PATH, urlPath);
     }
 
+    /**
+     * The default TrackMe is only locked when it changed since the last event.
+     *
+     * @return snapshot of the default TrackMe plus the parameters that are the same for every event
+     */
+    @VisibleForTesting
+    Defaults getDefaults() {
+        Defaults defaults = mDefaults;
+        if (defaults == null || defaults.mVersion != mDefaultTrackMe.getVersion()) {
+            String[] values;
+            int version;
+            synchronized (mDefaultTrackMe) {
+                version = mDefaultTrackMe.getVersion();
+                values = mDefaultTrackMe.copyValues();
+            }
+            String urlPath = values[QueryParams.URL_PATH.ordinal()];
+            if (defaults != null && !TextUtils.equals(urlPath, defaults.mValues[QueryParams.URL_PATH.ordinal()]))
+                mLastUrlPath.set(null); // A url set on the default TrackMe replaces the one of the last event
+            values[QueryParams.SITE_ID.ordinal()] = Integer.toString(mSiteId);
+            values[QueryParams.RECORD.ordinal()] = DEFAULT_RECORD_VALUE;
+            values[QueryParams.API_VERSION.ordinal()] = DEFAULT_API_VERSION_VALUE;
+            values[QueryParams.SEND_IMAGE.ordinal()] = "0";
+            defaults = new Defaults(version, values);
+            mDefaults = defaults;
+        }
+        return defaults;
+    }
+
     private static String fixUrl(String url, String baseUrl) {
         if (url == null) url = baseUrl + "/";
 
@@ -365,41 +654,102 @@ public class Tracker {
         return url;
     }
 
-    private CountDownLatch mSessionStartLatch = new CountDownLatch(0);
-
+    /**
+     * Tracks the event, on the calling thread or, with {@link #setAsyncTracking(boolean)}, on the async tracking thread.
+     * In async mode the TrackMe must not be modified after passing it.
+     * Events are dropped right away if Piwik is opted out (unless in dry run), the {@link #getSampler()} sampled them out
+     * or the {@link #getRateLimiter()} throttled them.
+     */
     public Tracker track(TrackMe trackMe) {
-        boolean newSession;
-        synchronized (mSessionLock) {
-            newSession = tryNewSession();
-            if (newSession)
-                mSessionStartLatch = new CountDownLatch(1);
+        if (mPiwik.isOptOut() && !mPiwik.isDryRun()) {
+            // Nothing would be sent, so don't pay for building the query. Dry runs still do for getLastEvent().
+            return this;
         }
-        if (newSession) {
-            injectInitialParams(trackMe);
-        } else {
+        if (mSampler.isActive() && !sample(trackMe))
+            return this;
+        if (mAggregator.isActive() && mAggregator.add(trackMe))
+            return this;
+        // After the aggregator, events it can merge are cheap and shouldn't use up tokens
+        if (mRateLimiter.isActive() && !mRateLimiter.tryAcquire(trackMe)) {
+            Timber.tag(LOGGER_TAG).v("Event throttled.");
+            return this;
+        }
+        handOver(trackMe);
+        return this;
+    }
+
+    /**
+     * Also takes the merged events of the {@link EventAggregator}.
+     */
+    void handOver(TrackMe trackMe) {
+        AsyncTrackQueue asyncQueue = mAsyncQueue;
+        if (mAsyncTracking && asyncQueue != null) {
+            asyncQueue.publish(trackMe);
+            return;
+        }
+        trackNow(trackMe);
+    }
+
+    /**
+     * Decides on the raw TrackMe, before any defaults are added or anything is encoded.
+     *
+     * @return true if the event was kept, it is tagged with its rate then
+     */
+    private boolean sample(TrackMe trackMe) {
+        String category = trackMe.get(QueryParams.EVENT_CATEGORY);
+        float rate = mSampler.getRate(category);
+        if (rate >= 1f)
+            return true;
+        String visitorId = trackMe.get(QueryParams.VISITOR_ID);
+        if (visitorId == null)
+            visitorId = getDefaults().mValues[QueryParams.VISITOR_ID.ordinal()];
+        if (!mSampler.keep(visitorId, category, rate))
+            return false;
+        trackMe.set(EventSampler.RATE_PARAM, Float.toString(rate));
+        return true;
+    }
+
+    void trackNow(TrackMe trackMe) {
+        Session session = touchSession(System.currentTimeMillis());
+        if (session.mNew) {
             try {
-                // Another thread is currently creating a sessions first transmission, wait until it's done.
-                mSessionStartLatch.await(mDispatcher.getConnectionTimeOut(), TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                injectInitialParams(trackMe);
+                injectBaseParams(trackMe);
+                queueEvent(new Event(Dispatcher.urlEncodeUTF8(trackMe), trackMe.getPriority()));
+            } finally {
+                // we did a first transmission, let the others through.
+                session.mStart.mDone = true;
+                drainSessionBacklog(session.mStart);
+            }
+        } else {
+            injectBaseParams(trackMe);
+            Event event = new Event(Dispatcher.urlEncodeUTF8(trackMe), trackMe.getPriority());
+            if (session.mStart.mDone) {
+                queueEvent(event);
+            } else {
+                // Another thread is currently creating the session's first transmission, ours has to go after it.
+                session.mStart.mBacklog.add(event);
+                // The other thread may have drained the backlog before we added to it
+                if (session.mStart.mDone)
+                    drainSessionBacklog(session.mStart);
             }
         }
+    }
+
+    private void drainSessionBacklog(SessionStart start) {
+        Event event;
+        while ((event = start.mBacklog.poll()) != null)
+            queueEvent(event);
+    }
 
-        injectBaseParams(trackMe);
-        String event = Dispatcher.urlEncodeUTF8(trackMe.toMap());
+    private void queueEvent(Event event) {
         if (mPiwik.isOptOut()) {
-            mLastEvent = event;
-            Timber.tag(LOGGER_TAG).d("URL omitted due to opt out: %s", event);
+            mLastEvent = event.getQuery();
+            Timber.tag(LOGGER_TAG).d("URL omitted due to opt out: %s", event.getQuery());
         } else {
             mDispatcher.submit(event);
-            Timber.tag(LOGGER_TAG).d("URL added to the queue: %s", event);
+            Timber.tag(LOGGER_TAG).d("URL added to the queue: %s", event.getQuery());
         }
-
-        // we did a first transmission, let the other through.
-        if (newSession)
-            mSessionStartLatch.countDown();
-
-        return this;
     }
 
     public static String makeRandomVisitorId() {
@@ -426,6 +776,34 @@ public class Tracker {
         return this;
     }
 
+    /**
+     * Persists this tracker's events in {@link #getCacheDir()}, unless another tracker of this process already does.
+     */
+    private void openEventStore() {
+        if (mDispatcher.getEventStore() instanceof DiskEventStore)
+            return;
+        DiskEventStore eventStore = mPiwik.openEventStore(getCacheDir(), mDispatcher);
+        if (eventStore != null) {
+            mDispatcher.setEventStore(eventStore);
+        } else {
+            Timber.tag(LOGGER_TAG).w("Another tracker for %s and site %d caches events already, keeping events in memory.", mApiUrl, mSiteId);
+        }
+    }
+
+    /**
+     * Each combination of tracking url and site id gets its own directory.
+     * A shared dispatcher holds the events of all sites, its directory is keyed by tracking url and auth token instead.
+     */
+    private File getCacheDir() {
+        String key = mSharedDispatch ? mApiUrl.toString() + "#shared#" + mAuthToken : mApiUrl.toString() + "#" + mSiteId;
+        try {
+            key = Checksum.getMD5Checksum(key);
+        } catch (Exception e) {
+            key = Integer.toHexString(key.hashCode());
+        }
+        return new File(mPiwik.getCacheDir(), key);
+    }
+
     public SharedPreferences getSharedPreferences() {
         return mPiwik.getSharedPreferences();
     }
@@ -468,5 +846,53 @@ public class Tracker {
     public Dispatcher getDispatcher() {
         return mDispatcher;
     }
-}
 
+    /**
+     * Immutable copy of the default values, replaced whenever the default TrackMe changed.
+     */
+    static class Defaults {
+        final int mVersion;
+        final String[] mValues;
+        // Encoded "&key=value" of mValues, filled in as events use them
+        final String[] mEncoded;
+
+        Defaults(int version, String[] values) {
+            mVersion = version;
+            mValues = values;
+            mEncoded = new String[values.length];
+        }
+    }
+
+    /**
+     * Immutable state of the current session, replaced by CAS.
+     */
+    private static class Session {
+        final long mEpoch;
+        final long mLastActivity;
+        final SessionStart mStart;
+        // Only true for the caller that began this epoch
+        final boolean mNew;
+
+        Session(long epoch, long lastActivity, SessionStart start, boolean isNew) {
+            mEpoch = epoch;
+            mLastActivity = lastActivity;
+            mStart = start;
+            mNew = isNew;
+        }
+    }
+
+    /**
+     * Shared by all {@link Session}s of an epoch.
+     * Until the epoch's first event is queued, the events of other threads wait in the backlog instead of blocking.
+     */
+    private static class SessionStart {
+        static final SessionStart DONE = new SessionStart();
+
+        static {
+            DONE.mDone = true;
+        }
+
+        final Queue<Event> mBacklog = new ConcurrentLinkedQueue<>();
+        volatile boolean mDone = false;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import timber.log.Timber;
+
+/**
+ * Visit count, first and previous visit of this device, shared by all trackers.
+ * <p/>
+ * The values are read from the preferences once and then kept in memory, so starting a session doesn't touch the preferences.
+ * Changes are written back on a background thread, changes made while a write is pending are coalesced into it.
+ */
+public class VisitorCounters {
+    private static final String LOGGER_TAG = Piwik.LOGGER_PREFIX + "VisitorCounters";
+
+    private final SharedPreferences mPreferences;
+    private final AtomicBoolean mWritePending = new AtomicBoolean(false);
+    private final Object mWriteLock = new Object();
+    private final Executor mWriter;
+    private int mVisitCount;
+    private long mFirstVisit;
+    private long mPreviousVisit;
+
+    /**
+     * Snapshot of the counters as of the start of a visit.
+     */
+    public static class Visit {
+        private final int mVisitCount;
+        private final long mFirstVisit;
+        private final long mPreviousVisit;
+
+        Visit(int visitCount, long firstVisit, long previousVisit) {
+            mVisitCount = visitCount;
+            mFirstVisit = firstVisit;
+            mPreviousVisit = previousVisit;
+        }
+
+        /**
+         * @return number of visits including this one
+         */
+        public int getVisitCount() {
+            return mVisitCount;
+        }
+
+        /**
+         * @return in seconds
+         */
+        public long getFirstVisit() {
+            return mFirstVisit;
+        }
+
+        /**
+         * @return in seconds, -1 if this is the first visit
+         */
+        public long getPreviousVisit() {
+            return mPreviousVisit;
+        }
+    }
+
+    VisitorCounters(@NonNull SharedPreferences preferences, @NonNull Executor writer) {
+        mPreferences = preferences;
+        mWriter = writer;
+        reload();
+    }
+
+    /**
+     * Counts a new visit.
+     *
+     * @param timestamp of the visit in seconds
+     * @return the counters to report for this visit
+     */
+    @NonNull
+    public Visit startVisit(long timestamp) {
+        Visit visit;
+        synchronized (this) {
+            mVisitCount++;
+            if (mFirstVisit == -1)
+                mFirstVisit = timestamp;
+            visit = new Visit(mVisitCount, mFirstVisit, mPreviousVisit);
+            mPreviousVisit = timestamp;
+        }
+        scheduleWrite();
+        return visit;
+    }
+
+    /**
+     * Writes pending changes to the preferences before returning.
+     */
+    public void flush() {
+        write();
+    }
+
+    /**
+     * Discards the in-memory values and reads them from the preferences again, e.g. after these were cleared.
+     */
+    @VisibleForTesting
+    void reload() {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                mVisitCount = mPreferences.getInt(Tracker.PREF_KEY_TRACKER_VISITCOUNT, 0);
+                mFirstVisit = mPreferences.getLong(Tracker.PREF_KEY_TRACKER_FIRSTVISIT, -1);
+                mPreviousVisit = mPreferences.getLong(Tracker.PREF_KEY_TRACKER_PREVIOUSVISIT, -1);
+            }
+        }
+    }
+
+    private void scheduleWrite() {
+        if (!mWritePending.compareAndSet(false, true))
+            return;
+        try {
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Timber.tag(LOGGER_TAG).e(e, "Cannot schedule write, writing now.");
+            mWritePending.set(false);
+            write();
+        }
+    }
+
+    private void write() {
+        // Serialized so that a newer snapshot can't be overwritten by an older one
+        synchronized (mWriteLock) {
+            mWritePending.set(false);
+            int visitCount;
+            long firstVisit;
+            long previousVisit;
+            synchronized (this) {
+                visitCount = mVisitCount;
+                firstVisit = mFirstVisit;
+                previousVisit = mPreviousVisit;
+            }
+            SharedPreferences.Editor editor = mPreferences.edit();
+            if (visitCount > 0) {
+                editor.putInt(Tracker.PREF_KEY_TRACKER_VISITCOUNT, visitCount);
+            } else {
+                editor.remove(Tracker.PREF_KEY_TRACKER_VISITCOUNT);
+            }
+            if (firstVisit != -1) {
+                editor.putLong(Tracker.PREF_KEY_TRACKER_FIRSTVISIT, firstVisit);
+            } else {
+                editor.remove(Tracker.PREF_KEY_TRACKER_FIRSTVISIT);
+            }
+            if (previousVisit != -1) {
+                editor.putLong(Tracker.PREF_KEY_TRACKER_PREVIOUSVISIT, previousVisit);
+            } else {
+                editor.remove(Tracker.PREF_KEY_TRACKER_PREVIOUSVISIT);
+            }
+            if (!editor.commit())
+                Timber.tag(LOGGER_TAG).w("Failed to persist visitor counters.");
+        }
+    }
+}
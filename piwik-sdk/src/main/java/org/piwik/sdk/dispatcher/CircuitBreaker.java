@@ -0,0 +1,187 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.piwik.sdk.Piwik;
+
+import timber.log.Timber;
+
+/**
+ * Stops the {@link Dispatcher} from sending while the server is down, instead of running into timeouts on every cycle.
+ * <p/>
+ * {@link State#CLOSED}: requests go out as usual. After {@link #getFailureThreshold()} consecutive failed requests it opens.
+ * {@link State#OPEN}: nothing is sent, events keep queuing. After {@link #getOpenDuration()} it becomes half-open.
+ * {@link State#HALF_OPEN}: one small probe page of {@link #getProbeSize()} events tests the server.
+ * If it gets through the breaker closes, otherwise it opens again.
+ * <p/>
+ * Only failures that may go away by themselves count, see {@link DispatchResult#isRetryable()}.
+ * Disabled by default.
+ */
+public class CircuitBreaker {
+    private static final String LOGGER_TAG = Piwik.LOGGER_PREFIX + "CircuitBreaker";
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_DURATION = 5 * 60 * 1000; // 5min
+    public static final int DEFAULT_PROBE_SIZE = 1;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    public interface Listener {
+        /**
+         * Called on the dispatching thread, keep it short.
+         */
+        void onStateChanged(@NonNull State from, @NonNull State to);
+    }
+
+    private volatile boolean mEnabled = false;
+    private volatile int mFailureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long mOpenDuration = DEFAULT_OPEN_DURATION;
+    private volatile int mProbeSize = DEFAULT_PROBE_SIZE;
+    private volatile Listener mListener;
+    // Guarded by this
+    private State mState = State.CLOSED;
+    private int mFailures = 0;
+    private long mOpenedAt = 0;
+
+    /**
+     * @param enabled false lets every request through, disabling closes an open breaker
+     */
+    public CircuitBreaker setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled)
+            transition(State.CLOSED, 0);
+        return this;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @param failureThreshold consecutive failed requests that open the breaker, at least 1
+     */
+    public CircuitBreaker setFailureThreshold(int failureThreshold) {
+        mFailureThreshold = Math.max(1, failureThreshold);
+        return this;
+    }
+
+    public int getFailureThreshold() {
+        return mFailureThreshold;
+    }
+
+    /**
+     * @param openDuration milliseconds to wait before probing the server
+     */
+    public CircuitBreaker setOpenDuration(long openDuration) {
+        mOpenDuration = Math.max(0, openDuration);
+        return this;
+    }
+
+    public long getOpenDuration() {
+        return mOpenDuration;
+    }
+
+    /**
+     * @param probeSize events sent while half-open, at least 1
+     */
+    public CircuitBreaker setProbeSize(int probeSize) {
+        mProbeSize = Math.max(1, probeSize);
+        return this;
+    }
+
+    public int getProbeSize() {
+        return mProbeSize;
+    }
+
+    /**
+     * @param listener null to stop listening
+     */
+    public CircuitBreaker setListener(@Nullable Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    @NonNull
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * Turns an open breaker half-open once the open duration passed.
+     *
+     * @return false if nothing may be sent now
+     */
+    boolean allowRequest() {
+        if (!mEnabled)
+            return true;
+        synchronized (this) {
+            if (mState != State.OPEN)
+                return true;
+            if (System.currentTimeMillis() - mOpenedAt < mOpenDuration)
+                return false;
+        }
+        transition(State.HALF_OPEN, 0);
+        return true;
+    }
+
+    /**
+     * @return milliseconds until an open breaker may be probed, 0 if it isn't open
+     */
+    synchronized long getRemainingOpenTime() {
+        if (mState != State.OPEN)
+            return 0;
+        return Math.max(0, mOpenedAt + mOpenDuration - System.currentTimeMillis());
+    }
+
+    /**
+     * Counts the outcome of one request.
+     */
+    void onResult(@NonNull DispatchResult result) {
+        if (!mEnabled)
+            return;
+        if (result.isSuccess() || !result.isRetryable()) {
+            // The server answered, even if it didn't like the events
+            synchronized (this) {
+                mFailures = 0;
+            }
+            transition(State.CLOSED, 0);
+            return;
+        }
+        boolean open;
+        synchronized (this) {
+            mFailures++;
+            open = mState == State.HALF_OPEN || (mState == State.CLOSED && mFailures >= mFailureThreshold);
+        }
+        if (open)
+            transition(State.OPEN, System.currentTimeMillis());
+    }
+
+    private void transition(State to, long now) {
+        State from;
+        synchronized (this) {
+            from = mState;
+            if (from == to)
+                return;
+            mState = to;
+            if (to == State.OPEN)
+                mOpenedAt = now;
+            else if (to == State.CLOSED)
+                mFailures = 0;
+        }
+        Timber.tag(LOGGER_TAG).d("%s -> %s", from, to);
+        Listener listener = mListener;
+        if (listener != null)
+            listener.onStateChanged(from, to);
+    }
+}
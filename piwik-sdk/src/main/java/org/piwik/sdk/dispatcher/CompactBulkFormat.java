@@ -0,0 +1,130 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Bulk request body that carries the parameters all events of a page have in common only once.
+ * <p/>
+ * {
+ * "shared": "idsite=1&rec=1&_id=0123456789abcdef&ua=...",
+ * "requests": ["action_name=Main&url=http://example.org", "action_name=Help&url=http://example.org/help"],
+ * "token_auth": "33dc3f2536d3025974cccb4b4d2d98f4"
+ * }
+ * <p/>
+ * Piwik itself doesn't understand this, a proxy in front of it has to {@link #expand(JSONObject)} it first.
+ * A parameter is shared if it has the same encoded value in every event of the page, parameter order isn't preserved.
+ */
+public class CompactBulkFormat {
+    public static final String SHARED = "shared";
+    public static final String REQUESTS = "requests";
+
+    private CompactBulkFormat() {
+    }
+
+    /**
+     * @param queries "?key=value&..." as passed to {@link Dispatcher#submit(String)}
+     * @return body with the "shared" and "requests" fields, the caller adds the auth token
+     */
+    @NonNull
+    public static JSONObject compact(@NonNull List<String> queries) throws JSONException {
+        List<List<String>> pairs = new ArrayList<>(queries.size());
+        for (String query : queries)
+            pairs.add(split(query));
+
+        StringBuilder shared = new StringBuilder();
+        if (pairs.size() > 1) {
+            Set<String> candidates = new LinkedHashSet<>(pairs.get(0));
+            for (String pair : candidates) {
+                boolean common = true;
+                for (int i = 1; i < pairs.size() && common; i++)
+                    common = pairs.get(i).contains(pair);
+                if (!common)
+                    continue;
+                // Only one occurrence each, so repeated parameters survive the round trip
+                for (List<String> eventPairs : pairs)
+                    eventPairs.remove(pair);
+                if (shared.length() > 0)
+                    shared.append('&');
+                shared.append(pair);
+            }
+        }
+
+        JSONArray requests = new JSONArray();
+        for (List<String> eventPairs : pairs)
+            requests.put(join(eventPairs));
+
+        JSONObject body = new JSONObject();
+        body.put(SHARED, shared.toString());
+        body.put(REQUESTS, requests);
+        return body;
+    }
+
+    /**
+     * Reference decoder for the server side.
+     *
+     * @param body as created by {@link #compact(List)}, other fields like the auth token are kept
+     * @return a regular Piwik bulk request body
+     */
+    @NonNull
+    public static JSONObject expand(@NonNull JSONObject body) throws JSONException {
+        String shared = body.getString(SHARED);
+        JSONArray deltas = body.getJSONArray(REQUESTS);
+        JSONArray requests = new JSONArray();
+        for (int i = 0; i < deltas.length(); i++) {
+            String delta = deltas.getString(i);
+            StringBuilder request = new StringBuilder(1 + shared.length() + 1 + delta.length());
+            request.append('?').append(shared);
+            if (shared.length() > 0 && delta.length() > 0)
+                request.append('&');
+            request.append(delta);
+            requests.put(request.toString());
+        }
+
+        JSONObject expanded = new JSONObject();
+        Iterator<String> keys = body.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (!SHARED.equals(key))
+                expanded.put(key, body.get(key));
+        }
+        expanded.put(REQUESTS, requests);
+        return expanded;
+    }
+
+    private static List<String> split(String query) {
+        if (query.startsWith("?"))
+            query = query.substring(1);
+        List<String> pairs = new ArrayList<>();
+        if (query.length() > 0)
+            pairs.addAll(Arrays.asList(query.split("&")));
+        return pairs;
+    }
+
+    private static String join(List<String> pairs) {
+        StringBuilder builder = new StringBuilder();
+        for (String pair : pairs) {
+            if (builder.length() > 0)
+                builder.append('&');
+            builder.append(pair);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+
+import org.piwik.sdk.Piwik;
+import org.piwik.sdk.tools.BackgroundExecutor;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import timber.log.Timber;
+
+/**
+ * Append-only event log, split into segments of {@link #RECORDS_PER_SEGMENT} events.
+ * <p/>
+ * Each segment is a text file with one event per line, the encoded query prefixed by a letter for its {@link Priority}.
+ * Lines without prefix, written by older versions, are read as {@link Priority#NORMAL}.
+ * Events are written by a background task which syncs once per batch,
+ * so {@link #persist(Event)} only has to hand the event over.
+ * <p/>
+ * For each segment a cursor file stores how many leading events the server has acknowledged.
+ * Once all events of a segment are acknowledged the segment is deleted.
+ * On {@link #replay()} everything behind the cursors is read back, a torn last line is ignored.
+ */
+public class DiskEventStore implements EventStore {
+    private static final String LOGGER_TAG = Piwik.LOGGER_PREFIX + "DiskEventStore";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CURSOR_SUFFIX = ".cur";
+    private static final Priority[] PRIORITIES = Priority.values();
+    // Indexed by ordinal, queries start with '?' so they can't be mistaken for one
+    private static final byte[] PRIORITY_PREFIXES = {'B', 'N', 'C'};
+    protected static final int RECORDS_PER_SEGMENT = 500;
+    private static final long WRITER_IDLE_TIMEOUT = 5 * 1000;
+
+    private final File mDirectory;
+    private final ScheduledExecutorService mExecutor;
+    private final BlockingQueue<Operation> mPending = new LinkedBlockingQueue<>();
+    private final Object mSequenceLock = new Object();
+    private final Object mThreadControl = new Object();
+    private final Object mWriterLock = new Object();
+    private final AtomicBoolean mCloseScheduled = new AtomicBoolean(false);
+    private final Map<Long, Segment> mSegments = new HashMap<>();
+    private final List<Long> mReplayableSegments = new ArrayList<>();
+    private long mNextSequence;
+    private volatile boolean mRunning = false;
+
+    // Only touched while holding mWriterLock
+    private long mLastWrite;
+    private long mOpenSegmentId = -1;
+    private FileOutputStream mOpenSegmentFile;
+    private BufferedOutputStream mOpenSegmentStream;
+
+    /**
+     * Writes on a background thread of its own.
+     */
+    public DiskEventStore(@NonNull File directory) {
+        this(directory, new BackgroundExecutor(1, "Piwik-DiskEventStore"));
+    }
+
+    /**
+     * @param executor runs the writes
+     */
+    public DiskEventStore(@NonNull File directory, @NonNull ScheduledExecutorService executor) {
+        mDirectory = directory;
+        mExecutor = executor;
+        if (!mDirectory.exists() && !mDirectory.mkdirs())
+            Timber.tag(LOGGER_TAG).w("Cannot create %s", mDirectory);
+
+        long lastSegment = -1;
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().endsWith(SEGMENT_SUFFIX))
+                    continue;
+                try {
+                    long segmentId = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+                    mReplayableSegments.add(segmentId);
+                    lastSegment = Math.max(lastSegment, segmentId);
+                } catch (NumberFormatException e) {
+                    Timber.tag(LOGGER_TAG).w("Ignoring unknown file %s", file);
+                }
+            }
+        }
+        Collections.sort(mReplayableSegments);
+        // Never append to a segment written by a previous process, its last line might be torn.
+        mNextSequence = (lastSegment + 1) * RECORDS_PER_SEGMENT;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    @Override
+    public void persist(@NonNull Event event) {
+        synchronized (mSequenceLock) {
+            // Assigning ids and queueing under one lock keeps the file order equal to the id order
+            event.setStoreId(mNextSequence++);
+            mPending.add(new Operation(Operation.WRITE, event));
+        }
+        launch();
+    }
+
+    @Override
+    public void acknowledge(@NonNull List<Event> events) {
+        for (Event event : events) {
+            if (event.getStoreId() >= 0)
+                mPending.add(new Operation(Operation.ACKNOWLEDGE, event));
+        }
+        launch();
+    }
+
+    @NonNull
+    @Override
+    public List<Event> replay() {
+        List<Event> events = new ArrayList<>();
+        synchronized (mSegments) {
+            for (long segmentId : mReplayableSegments) {
+                byte[] data;
+                try {
+                    data = readFully(getSegmentFile(segmentId));
+                } catch (IOException e) {
+                    Timber.tag(LOGGER_TAG).w(e, "Cannot read segment %d", segmentId);
+                    continue;
+                }
+                int cursor = readCursor(segmentId);
+                int index = 0;
+                int lineStart = 0;
+                for (int i = 0; i < data.length; i++) {
+                    if (data[i] != '\n')
+                        continue;
+                    if (index >= cursor && i > lineStart) {
+                        Event event = decodeEvent(data, lineStart, i - lineStart);
+                        event.setStoreId(segmentId * RECORDS_PER_SEGMENT + index);
+                        events.add(event);
+                    }
+                    index++;
+                    lineStart = i + 1;
+                }
+                if (cursor >= index) {
+                    deleteSegment(segmentId);
+                } else {
+                    mSegments.put(segmentId, new Segment(index, cursor));
+                }
+            }
+            mReplayableSegments.clear();
+        }
+        Timber.tag(LOGGER_TAG).d("Replaying %d events.", events.size());
+        return events;
+    }
+
+    /**
+     * Reads events that were persisted by this store back from disk, skipping acknowledged ones.
+     *
+     * @param fromStoreId first id to read
+     * @param toStoreId   id to stop at (exclusive)
+     * @param maxEvents   stop after this many events
+     * @param maxBytes    stop once the events {@link Event#getMemorySize()} reach this
+     * @return the events in the order they were persisted
+     */
+    @NonNull
+    public List<Event> read(long fromStoreId, long toStoreId, int maxEvents, long maxBytes) {
+        flush();
+        List<Event> events = new ArrayList<>();
+        long bytes = 0;
+        for (long segmentId = fromStoreId / RECORDS_PER_SEGMENT; segmentId * RECORDS_PER_SEGMENT < toStoreId; segmentId++) {
+            File segmentFile = getSegmentFile(segmentId);
+            if (!segmentFile.exists())
+                continue;
+            byte[] data;
+            try {
+                data = readFully(segmentFile);
+            } catch (IOException e) {
+                Timber.tag(LOGGER_TAG).w(e, "Cannot read segment %d", segmentId);
+                continue;
+            }
+            int index = 0;
+            int lineStart = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] != '\n')
+                    continue;
+                long storeId = segmentId * RECORDS_PER_SEGMENT + index;
+                if (storeId >= toStoreId)
+                    break;
+                if (storeId >= fromStoreId && !isAcknowledged(segmentId, index)) {
+                    Event event = decodeEvent(data, lineStart, i - lineStart);
+                    event.setStoreId(storeId);
+                    events.add(event);
+                    bytes += event.getMemorySize();
+                    if (events.size() == maxEvents || (maxBytes >= 0 && bytes >= maxBytes))
+                        return events;
+                }
+                index++;
+                lineStart = i + 1;
+            }
+        }
+        return events;
+    }
+
+    private boolean isAcknowledged(long segmentId, int index) {
+        synchronized (mSegments) {
+            Segment segment = mSegments.get(segmentId);
+            return segment != null && segment.acknowledged.get(index);
+        }
+    }
+
+    /**
+     * Blocks until everything handed to this store so far is written to disk.
+     */
+    public void flush() {
+        // Writing it ourselves instead of waiting for the writer task, which may not get a thread while we block one
+        drain();
+    }
+
+    private void launch() {
+        synchronized (mThreadControl) {
+            if (!mRunning) {
+                mRunning = true;
+                try {
+                    mExecutor.execute(mWriterTask);
+                } catch (RejectedExecutionException e) {
+                    mRunning = false;
+                    Timber.tag(LOGGER_TAG).e(e, "Cannot start writer.");
+                }
+            }
+        }
+    }
+
+    private final Runnable mWriterTask = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                drain();
+                synchronized (mThreadControl) {
+                    if (mPending.isEmpty()) {
+                        mRunning = false;
+                        break;
+                    }
+                }
+            }
+            scheduleClose(WRITER_IDLE_TIMEOUT);
+        }
+    };
+
+    private void drain() {
+        synchronized (mWriterLock) {
+            List<Operation> batch = new ArrayList<>();
+            // Group commit, everything that piled up meanwhile shares one sync
+            while (mPending.drainTo(batch) > 0) {
+                commit(batch);
+                batch.clear();
+                mLastWrite = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void scheduleClose(long delay) {
+        if (!mCloseScheduled.compareAndSet(false, true))
+            return;
+        try {
+            mExecutor.schedule(mCloseTask, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            mCloseScheduled.set(false);
+        }
+    }
+
+    private final Runnable mCloseTask = new Runnable() {
+        @Override
+        public void run() {
+            long idle;
+            synchronized (mWriterLock) {
+                idle = System.currentTimeMillis() - mLastWrite;
+                if (idle >= WRITER_IDLE_TIMEOUT)
+                    closeSegment();
+            }
+            mCloseScheduled.set(false);
+            if (idle < WRITER_IDLE_TIMEOUT)
+                scheduleClose(WRITER_IDLE_TIMEOUT - idle);
+        }
+    };
+
+    private void commit(List<Operation> batch) {
+        Set<Long> dirtySegments = new HashSet<>();
+        boolean written = false;
+        for (Operation operation : batch) {
+            if (operation.type == Operation.WRITE) {
+                written |= append(operation.event);
+            } else if (operation.type == Operation.ACKNOWLEDGE) {
+                long segmentId = operation.event.getStoreId() / RECORDS_PER_SEGMENT;
+                int index = (int) (operation.event.getStoreId() % RECORDS_PER_SEGMENT);
+                synchronized (mSegments) {
+                    Segment segment = mSegments.get(segmentId);
+                    if (segment != null && segment.acknowledge(index))
+                        dirtySegments.add(segmentId);
+                }
+            }
+        }
+
+        if (written) {
+            try {
+                mOpenSegmentStream.flush();
+                mOpenSegmentFile.getFD().sync();
+            } catch (IOException e) {
+                Timber.tag(LOGGER_TAG).w(e, "Cannot sync segment %d", mOpenSegmentId);
+            }
+        }
+
+        // Cursors move only after the events they cover are on disk
+        synchronized (mSegments) {
+            for (long segmentId : dirtySegments) {
+                Segment segment = mSegments.get(segmentId);
+                if (segment.isComplete()) {
+                    if (segmentId == mOpenSegmentId)
+                        closeSegment();
+                    mSegments.remove(segmentId);
+                    deleteSegment(segmentId);
+                } else {
+                    writeCursor(segmentId, segment.cursor);
+                }
+            }
+        }
+    }
+
+    private boolean append(Event event) {
+        long segmentId = event.getStoreId() / RECORDS_PER_SEGMENT;
+        try {
+            if (segmentId != mOpenSegmentId) {
+                closeSegment();
+                mOpenSegmentFile = new FileOutputStream(getSegmentFile(segmentId), true);
+                mOpenSegmentStream = new BufferedOutputStream(mOpenSegmentFile);
+                mOpenSegmentId = segmentId;
+                synchronized (mSegments) {
+                    if (!mSegments.containsKey(segmentId))
+                        mSegments.put(segmentId, new Segment(RECORDS_PER_SEGMENT, 0));
+                }
+            }
+            mOpenSegmentStream.write(PRIORITY_PREFIXES[event.getPriority().ordinal()]);
+            mOpenSegmentStream.write(event.getQuery().getBytes("UTF-8"));
+            mOpenSegmentStream.write('\n');
+            return true;
+        } catch (IOException e) {
+            Timber.tag(LOGGER_TAG).w(e, "Cannot write to segment %d", segmentId);
+            closeSegment();
+            return false;
+        }
+    }
+
+    private void closeSegment() {
+        if (mOpenSegmentStream == null)
+            return;
+        try {
+            mOpenSegmentStream.flush();
+            mOpenSegmentFile.getFD().sync();
+            mOpenSegmentStream.close();
+        } catch (IOException e) {
+            Timber.tag(LOGGER_TAG).w(e, "Cannot close segment %d", mOpenSegmentId);
+        }
+        mOpenSegmentStream = null;
+        mOpenSegmentFile = null;
+        mOpenSegmentId = -1;
+    }
+
+    private File getSegmentFile(long segmentId) {
+        return new File(mDirectory, segmentId + SEGMENT_SUFFIX);
+    }
+
+    private File getCursorFile(long segmentId) {
+        return new File(mDirectory, segmentId + CURSOR_SUFFIX);
+    }
+
+    private void deleteSegment(long segmentId) {
+        getCursorFile(segmentId).delete();
+        if (!getSegmentFile(segmentId).delete())
+            Timber.tag(LOGGER_TAG).w("Cannot delete segment %d", segmentId);
+    }
+
+    private int readCursor(long segmentId) {
+        File cursorFile = getCursorFile(segmentId);
+        if (!cursorFile.exists())
+            return 0;
+        try {
+            return Integer.parseInt(decode(readFully(cursorFile), 0, (int) cursorFile.length()).trim());
+        } catch (Exception e) {
+            Timber.tag(LOGGER_TAG).w(e, "Cannot read cursor of segment %d", segmentId);
+            return 0;
+        }
+    }
+
+    private void writeCursor(long segmentId, int cursor) {
+        // Write a new file and swap it in, a torn cursor would be worse than an old one
+        File tmpFile = new File(mDirectory, segmentId + CURSOR_SUFFIX + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmpFile);
+            out.write(Integer.toString(cursor).getBytes("UTF-8"));
+            out.getFD().sync();
+            out.close();
+            if (!tmpFile.renameTo(getCursorFile(segmentId)))
+                Timber.tag(LOGGER_TAG).w("Cannot commit cursor of segment %d", segmentId);
+        } catch (IOException e) {
+            Timber.tag(LOGGER_TAG).w(e, "Cannot write cursor of segment %d", segmentId);
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+        byte[] buffer = new byte[8192];
+        int read;
+        try {
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static Event decodeEvent(byte[] data, int offset, int length) {
+        for (int i = 0; i < PRIORITY_PREFIXES.length; i++) {
+            if (data[offset] == PRIORITY_PREFIXES[i])
+                return new Event(decode(data, offset + 1, length - 1), PRIORITIES[i]);
+        }
+        return new Event(decode(data, offset, length));
+    }
+
+    private static String decode(byte[] data, int offset, int length) {
+        try {
+            return new String(data, offset, length, "UTF-8");
+        } catch (IOException e) {
+            return new String(data, offset, length);
+        }
+    }
+
+    private static class Segment {
+        private final int capacity;
+        private final BitSet acknowledged = new BitSet();
+        private int cursor;
+
+        Segment(int capacity, int cursor) {
+            this.capacity = capacity;
+            this.cursor = cursor;
+            acknowledged.set(0, cursor);
+        }
+
+        /**
+         * @return true if the cursor moved
+         */
+        boolean acknowledge(int index) {
+            acknowledged.set(index);
+            int newCursor = acknowledged.nextClearBit(cursor);
+            if (newCursor == cursor)
+                return false;
+            cursor = newCursor;
+            return true;
+        }
+
+        boolean isComplete() {
+            return cursor >= capacity;
+        }
+    }
+
+    private static class Operation {
+        static final int WRITE = 0;
+        static final int ACKNOWLEDGE = 1;
+
+        final int type;
+        final Event event;
+
+        Operation(int type, Event event) {
+            this.type = type;
+            this.event = event;
+        }
+    }
+}
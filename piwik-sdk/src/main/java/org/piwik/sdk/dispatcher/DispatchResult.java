@@ -0,0 +1,109 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Outcome of sending one {@link Packet}
+ */
+public class DispatchResult {
+    /**
+     * Too Many Requests, not part of {@link HttpURLConnection}'s constants
+     */
+    public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final int mStatusCode;
+    private final long mRetryAfter;
+    private final Exception mException;
+    private final long mLatency;
+
+    /**
+     * @param statusCode HTTP status code, -1 if there was no response
+     * @param retryAfter milliseconds the server asked us to wait, -1 if it didn't
+     * @param exception  what prevented a response, if anything
+     */
+    public DispatchResult(int statusCode, long retryAfter, @Nullable Exception exception) {
+        this(statusCode, retryAfter, exception, -1);
+    }
+
+    /**
+     * @param latency milliseconds from sending the request until the response was read, -1 if unknown
+     */
+    public DispatchResult(int statusCode, long retryAfter, @Nullable Exception exception, long latency) {
+        mStatusCode = statusCode;
+        mRetryAfter = retryAfter;
+        mException = exception;
+        mLatency = latency;
+    }
+
+    public static DispatchResult forStatus(int statusCode) {
+        return new DispatchResult(statusCode, -1, null);
+    }
+
+    public static DispatchResult forException(Exception exception) {
+        return new DispatchResult(-1, -1, exception);
+    }
+
+    /**
+     * @return HTTP status code, -1 if there was no response
+     */
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    /**
+     * @return value of the Retry-After header in milliseconds, -1 if not set
+     */
+    public long getRetryAfter() {
+        return mRetryAfter;
+    }
+
+    /**
+     * @return milliseconds the request took, -1 if unknown
+     */
+    public long getLatency() {
+        return mLatency;
+    }
+
+    @Nullable
+    public Exception getException() {
+        return mException;
+    }
+
+    /**
+     * Any 2xx, e.g. a proxy answering 202 Accepted.
+     */
+    public boolean isSuccess() {
+        return mStatusCode >= HttpURLConnection.HTTP_OK && mStatusCode < HttpURLConnection.HTTP_MULT_CHOICE;
+    }
+
+    /**
+     * Timeouts, network errors, 408, 413, 429, 5xx and anything unexpected like a 3xx might go away when trying again later.
+     * Only the other 4xx mean the server will never accept these events.
+     */
+    public boolean isRetryable() {
+        if (mStatusCode == -1)
+            return mException instanceof IOException;
+        if (isSuccess())
+            return false;
+        if (mStatusCode >= HttpURLConnection.HTTP_BAD_REQUEST && mStatusCode < HttpURLConnection.HTTP_INTERNAL_ERROR)
+            return mStatusCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                    || mStatusCode == HttpURLConnection.HTTP_ENTITY_TOO_LARGE
+                    || mStatusCode == HTTP_TOO_MANY_REQUESTS;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "DispatchResult(statusCode=" + mStatusCode + ", retryAfter=" + mRetryAfter + ", exception=" + mException + ", latency=" + mLatency + ")";
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.dispatcher;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import org.piwik.sdk.Piwik;
+
+import java.lang.ref.WeakReference;
+
+import timber.log.Timber;
+
+/**
+ * Adapts the dispatch interval to the device's connectivity and charging state.
+ * <p/>
+ * While offline nothing is dispatched, on metered networks events are collected for longer,
+ * on unmetered networks while charging they are sent promptly.
+ * Connectivity and power changes are picked up via broadcasts and wake the {@link Dispatcher} when conditions improve.
+ * The listener is only held weakly, once its dispatcher is gone the broadcast receiver unregisters itself.
+ */
+public class DispatchScheduler {
+    private static final String LOGGER_TAG = Piwik.LOGGER_PREFIX + "DispatchScheduler";
+    public static final int DEFAULT_METERED_MULTIPLIER = 3;
+    public static final long DEFAULT_PROMPT_INTERVAL = 10 * 1000; // 10s
+    // ConnectivityManager.TYPE_ETHERNET, API 13
+    private static final int TYPE_ETHERNET = 9;
+
+    interface Listener {
+        void onConditionsImproved();
+    }
+
+    private final Context mContext;
+    private volatile boolean mOnline = true;
+    private volatile boolean mMetered = false;
+    private volatile boolean mCharging = false;
+    private volatile int mMeteredMultiplier = DEFAULT_METERED_MULTIPLIER;
+    private volatile long mPromptInterval = DEFAULT_PROMPT_INTERVAL;
+    private WeakReference<Listener> mListener;
+    private boolean mRegistered = false;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            refresh();
+        }
+    };
+
+    public DispatchScheduler(@NonNull Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * On metered networks the dispatch interval is multiplied by this, unless the device is charging.
+     *
+     * @param multiplier at least 1, defaults to {@link #DEFAULT_METERED_MULTIPLIER}
+     */
+    public DispatchScheduler setMeteredMultiplier(int multiplier) {
+        mMeteredMultiplier = Math.max(1, multiplier);
+        return this;
+    }
+
+    public int getMeteredMultiplier() {
+        return mMeteredMultiplier;
+    }
+
+    /**
+     * Upper limit for the dispatch interval on unmetered networks while charging.
+     *
+     * @param promptInterval in milliseconds, defaults to {@link #DEFAULT_PROMPT_INTERVAL}
+     */
+    public DispatchScheduler setPromptInterval(long promptInterval) {
+        mPromptInterval = promptInterval;
+        return this;
+    }
+
+    public long getPromptInterval() {
+        return mPromptInterval;
+    }
+
+    public boolean isOnline() {
+        return mOnline;
+    }
+
+    public boolean isMetered() {
+        return mMetered;
+    }
+
+    public boolean isCharging() {
+        return mCharging;
+    }
+
+    /**
+     * @return false while there is no network connection
+     */
+    public boolean isDispatchAllowed() {
+        return mOnline;
+    }
+
+    /**
+     * @param interval the configured dispatch interval in milliseconds, -1 for manual dispatching
+     * @return how long to wait until the next dispatch under the current conditions
+     */
+    public long getInterval(long interval) {
+        if (interval < 0)
+            return interval;
+        if (mMetered) {
+            return mCharging ? interval : interval * mMeteredMultiplier;
+        } else if (mCharging) {
+            return Math.min(interval, mPromptInterval);
+        }
+        return interval;
+    }
+
+    /**
+     * @param listener the caller has to keep a reference to it for as long as it wants to listen
+     */
+    void start(@Nullable Listener listener) {
+        synchronized (this) {
+            mListener = listener != null ? new WeakReference<>(listener) : null;
+            if (!mRegistered) {
+                IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+                filter.addAction(Intent.ACTION_POWER_CONNECTED);
+                filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+                try {
+                    mContext.registerReceiver(mReceiver, filter);
+                    mRegistered = true;
+                } catch (Exception e) {
+                    Timber.tag(LOGGER_TAG).w(e, "Can't listen for connectivity changes.");
+                }
+            }
+        }
+        refresh();
+    }
+
+    synchronized void stop() {
+        mListener = null;
+        if (mRegistered) {
+            mRegistered = false;
+            try {
+                mContext.unregisterReceiver(mReceiver);
+            } catch (Exception e) {
+                Timber.tag(LOGGER_TAG).w(e, "Failed to unregister receiver.");
+            }
+        }
+    }
+
+    @VisibleForTesting
+    synchronized boolean isRegistered() {
+        return mRegistered;
+    }
+
+    /**
+     * Reads the current connectivity and charging state.
+     */
+    public void refresh() {
+        boolean online = mOnline;
+        boolean metered = mMetered;
+        try {
+            ConnectivityManager connectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            // If we can't tell, we don't stand in the way
+            if (connectivityManager != null) {
+                NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+                online = networkInfo != null && networkInfo.isConnected();
+                if (online) {
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                        metered = connectivityManager.isActiveNetworkMetered();
+                    } else {
+                        metered = networkInfo.getType() != ConnectivityManager.TYPE_WIFI && networkInfo.getType() != TYPE_ETHERNET;
+                    }
+                }
+            }
+        } catch (SecurityException e) {
+            Timber.tag(LOGGER_TAG).w(e, "Can't read the network state.");
+        }
+
+        boolean charging = mCharging;
+        // Sticky broadcast, no receiver is registered by this
+        Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null)
+            charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+
+        update(online, metered, charging);
+    }
+
+    @VisibleForTesting
+    void update(boolean online, boolean metered, boolean charging) {
+        boolean improved = (online && !mOnline) || (!metered && mMetered) || (charging && !mCharging);
+        mOnline = online;
+        mMetered = metered;
+        mCharging = charging;
+        Timber.tag(LOGGER_TAG).d("Online: %b, metered: %b, charging: %b", online, metered, charging);
+
+        Listener listener;
+        boolean orphaned;
+        synchronized (this) {
+            listener = mListener != null ? mListener.get() : null;
+            orphaned = mListener != null && listener == null;
+        }
+        if (orphaned) {
+            // Whoever listened was dropped without stopping us
+            stop();
+            return;
+        }
+        if (improved && online && listener != null)
+            listener.onConditionsImproved();
+    }
+}
@@ -7,28 +7,30 @@
 
 package org.piwik.sdk.dispatcher;
 
-import android.os.Process;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
 import org.json.JSONObject;
 import org.piwik.sdk.Piwik;
+import org.piwik.sdk.TrackMe;
+import org.piwik.sdk.tools.BackgroundExecutor;
+import org.piwik.sdk.tools.PercentEncoder;
 
-import java.io.BufferedWriter;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import timber.log.Timber;
 
@@ -46,10 +48,10 @@ import timber.log.Timber;
 @SuppressWarnings("deprecation")
 public class Dispatcher {
     private static final String LOGGER_TAG = Piwik.LOGGER_PREFIX + "Dispatcher";
-    private final BlockingQueue<String> mDispatchQueue = new LinkedBlockingQueue<>();
+    private final EventQueue mDispatchQueue = new EventQueue();
     private final Object mThreadControl = new Object();
-    private final Semaphore mSleepToken = new Semaphore(0);
     private final Piwik mPiwik;
+    private final BackgroundExecutor mExecutor;
     private final URL mApiUrl;
     private final String mAuthToken;
 
@@ -57,12 +59,46 @@ public class Dispatcher {
     public static final int DEFAULT_CONNECTION_TIMEOUT = 5 * 1000;  // 5s
     private volatile int mTimeOut = DEFAULT_CONNECTION_TIMEOUT;
     private volatile boolean mRunning = false;
+    // Guarded by mThreadControl
+    private ScheduledFuture<?> mNextCycle;
+    private boolean mSkipWait = false;
+    // Lowest priority the next cycle sends, BULK after forced dispatches
+    private Priority mCycleLane = Priority.NORMAL;
+    // When the interval of the regular cycle ends, critical cycles in between don't move it
+    private long mRegularCycleDue = 0;
+
+    private static final int MAX_QUERY_BUILDER_CAPACITY = 8 * 1024;
+    private static final ThreadLocal<StringBuilder> QUERY_BUILDER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(512);
+        }
+    };
 
     public static final long DEFAULT_DISPATCH_INTERVAL = 120 * 1000; // 120s
     private volatile long mDispatchInterval = DEFAULT_DISPATCH_INTERVAL;
+    public static final long DEFAULT_CRITICAL_LINGER = 1000; // 1s
+    private volatile long mCriticalLinger = DEFAULT_CRITICAL_LINGER;
+    public static final long DEFAULT_BULK_DELAY = 10 * 60 * 1000; // 10min
+    private volatile long mBulkDelay = DEFAULT_BULK_DELAY;
+    private final RetryPolicy mRetryPolicy = new RetryPolicy();
+    private final PageSizer mPageSizer = new PageSizer();
+    private final CircuitBreaker mCircuitBreaker = new CircuitBreaker();
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = HttpTransport.DEFAULT_COMPRESSION_THRESHOLD;
+    private final HttpTransport mHttpTransport = new HttpTransport(DEFAULT_CONNECTION_TIMEOUT);
+    private volatile Transport mTransport = mHttpTransport;
+    private final AtomicInteger mConsecutiveFailures = new AtomicInteger();
+    private volatile int mMaxPagesInFlight = 1;
+    private volatile boolean mCompactBulkFormat = false;
+    private volatile DispatchScheduler mScheduler;
+    // A forced dispatch that was put off because we were offline
+    private volatile boolean mDispatchDeferred = false;
+    // Time until which failures keep us from sending, 0 if there were none
+    private volatile long mBackoffUntil = 0;
 
     public Dispatcher(Piwik piwik, URL apiUrl, String authToken) {
         mPiwik = piwik;
+        mExecutor = piwik.getNetworkExecutor();
         mApiUrl = apiUrl;
         mAuthToken = authToken;
     }
@@ -84,6 +120,50 @@ public class Dispatcher {
      */
     public void setConnectionTimeOut(int timeOut) {
         mTimeOut = timeOut;
+        mHttpTransport.setTimeOut(timeOut);
+    }
+
+    /**
+     * Replaces how packets are sent, e.g. by a different HTTP client or a stand-in for tests.
+     * Connection timeout and compression settings only apply to the default transport.
+     *
+     * @param transport null to restore the default {@link HttpTransport}
+     */
+    public void setTransport(@Nullable Transport transport) {
+        mTransport = transport != null ? transport : mHttpTransport;
+    }
+
+    @NonNull
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Sends POST bodies with {@code Content-Encoding: gzip}.
+     * The server has to accept compressed requests, Piwik's tracker does not out of the box
+     * (e.g. enable mod_deflate's input filter on Apache). Values take effect on next dispatch.
+     *
+     * @param compression true to compress bodies of at least {@link #getCompressionThreshold()} characters
+     */
+    public void setCompression(boolean compression) {
+        mHttpTransport.setCompression(compression);
+    }
+
+    public boolean isCompression() {
+        return mHttpTransport.isCompression();
+    }
+
+    /**
+     * Small bodies don't shrink enough to be worth the CPU time and the gzip header.
+     *
+     * @param threshold minimum body length in characters that is compressed, defaults to {@link #DEFAULT_COMPRESSION_THRESHOLD}
+     */
+    public void setCompressionThreshold(int threshold) {
+        mHttpTransport.setCompressionThreshold(threshold);
+    }
+
+    public int getCompressionThreshold() {
+        return mHttpTransport.getCompressionThreshold();
     }
 
     /**
@@ -105,7 +185,7 @@ public class Dispatcher {
         synchronized (mThreadControl) {
             if (!mRunning) {
                 mRunning = true;
-                new Thread(mLoop).start();
+                scheduleCycle();
                 return true;
             }
         }
@@ -117,130 +197,605 @@ public class Dispatcher {
      * If the dispatcher is working it will skip the dispatch interval once.
      */
     public boolean forceDispatch() {
-        if (!launch()) {
-            mSleepToken.release();
+        synchronized (mThreadControl) {
+            if (!mRunning) {
+                // A forced cycle sends events of all priorities
+                mSkipWait = true;
+                return launch();
+            }
+            skipWait();
             return false;
         }
-        return true;
     }
 
-    public void submit(String query) {
-        mDispatchQueue.add(query);
-        if (mDispatchInterval != -1)
+    /**
+     * Either we wait the interval or forceDispatch() granted us one free pass.
+     * Queued critical events only wait for the linger time. The backoff after failures is always waited.
+     * Call with mThreadControl held.
+     */
+    private void scheduleCycle() {
+        long delay = 0;
+        if (mSkipWait) {
+            mSkipWait = false;
+            mCycleLane = Priority.BULK;
+            mRegularCycleDue = 0;
+            delay = Math.max(0, getRemainingBackoff());
+        } else {
+            long now = System.currentTimeMillis();
+            if (mRegularCycleDue <= now) {
+                DispatchScheduler scheduler = mScheduler;
+                long interval = scheduler != null ? scheduler.getInterval(mDispatchInterval) : mDispatchInterval;
+                mRegularCycleDue = now + Math.max(0, interval);
+            }
+            delay = mRegularCycleDue - now;
+            mCycleLane = Priority.NORMAL;
+            if (mDispatchQueue.size(Priority.CRITICAL) > 0 && mCriticalLinger < delay) {
+                delay = mCriticalLinger;
+                mCycleLane = Priority.CRITICAL;
+            }
+            delay = Math.max(0, Math.max(delay, getRemainingBackoff()));
+        }
+        schedule(delay);
+    }
+
+    /**
+     * Call with mThreadControl held.
+     */
+    private void schedule(long delay) {
+        try {
+            mNextCycle = mExecutor.schedule(mCycle, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Timber.tag(LOGGER_TAG).e(e, "Cannot schedule dispatch.");
+            mRunning = false;
+        }
+    }
+
+    /**
+     * Forced cycles wait for this too, it covers failures, Retry-After and an open circuit breaker.
+     */
+    private long getRemainingBackoff() {
+        return Math.max(mBackoffUntil - System.currentTimeMillis(), mCircuitBreaker.getRemainingOpenTime());
+    }
+
+    /**
+     * Brings a waiting cycle forward to the linger time of critical events.
+     * A running cycle takes care of that when it schedules the next one.
+     */
+    private void lingerCritical() {
+        synchronized (mThreadControl) {
+            if (mNextCycle != null && mNextCycle.getDelay(TimeUnit.MILLISECONDS) > Math.max(mCriticalLinger, getRemainingBackoff()) && mNextCycle.cancel(false)) {
+                mExecutor.purge();
+                scheduleCycle();
+            }
+        }
+    }
+
+    /**
+     * Runs a waiting cycle right away, a running one skips its next wait.
+     * Call with mThreadControl held.
+     */
+    private void skipWait() {
+        mSkipWait = true;
+        if (mNextCycle != null && mNextCycle.cancel(false)) {
+            // Don't let the cancelled cycle keep a thread alive until it would have been due
+            mExecutor.purge();
+            scheduleCycle();
+        }
+    }
+
+    /**
+     * Events are persisted to the store before being queued and removed from it once the server acknowledged them.
+     * Any events the store still holds from a previous process are queued for dispatch right away.
+     *
+     * @param eventStore null to keep events in memory only
+     */
+    public void setEventStore(@Nullable EventStore eventStore) {
+        mDispatchQueue.setEventStore(eventStore);
+        if (!mDispatchQueue.isEmpty() && mDispatchInterval != -1)
             launch();
     }
 
-    private Runnable mLoop = new Runnable() {
+    @Nullable
+    public EventStore getEventStore() {
+        return mDispatchQueue.getEventStore();
+    }
+
+    /**
+     * Limits how many events are kept while waiting for the next dispatch, e.g. during long offline periods.
+     * What happens to events that don't fit is decided by {@link #setOverflowPolicy(EventQueue.OverflowPolicy)}.
+     *
+     * @param maxEvents -1 for no limit, which is the default
+     */
+    public void setMaxQueueSize(int maxEvents) {
+        mDispatchQueue.setMaxEvents(maxEvents);
+    }
+
+    public int getMaxQueueSize() {
+        return mDispatchQueue.getMaxEvents();
+    }
+
+    /**
+     * Like {@link #setMaxQueueSize(int)} but limits the memory used by the queued events.
+     *
+     * @param maxBytes -1 for no limit, which is the default
+     */
+    public void setMaxQueueBytes(long maxBytes) {
+        mDispatchQueue.setMaxBytes(maxBytes);
+    }
+
+    public long getMaxQueueBytes() {
+        return mDispatchQueue.getMaxBytes();
+    }
+
+    /**
+     * Default is {@link EventQueue.OverflowPolicy#DROP_OLDEST}
+     */
+    public void setOverflowPolicy(@NonNull EventQueue.OverflowPolicy overflowPolicy) {
+        mDispatchQueue.setOverflowPolicy(overflowPolicy);
+    }
+
+    @NonNull
+    public EventQueue.OverflowPolicy getOverflowPolicy() {
+        return mDispatchQueue.getOverflowPolicy();
+    }
+
+    /**
+     * @return number of events lost because the queue was full
+     */
+    public long getDroppedEventCount() {
+        return mDispatchQueue.getDroppedEvents();
+    }
+
+    /**
+     * @return number of events that were moved to disk because the queue was full
+     */
+    public long getSpilledEventCount() {
+        return mDispatchQueue.getSpilledEvents();
+    }
+
+    /**
+     * Pages are sent one after another by default. With more pages in flight a large backlog drains in parallel,
+     * events of the same visitor are still sent one page after another to keep their order.
+     * Concurrency is also limited by the threads of the shared {@link Piwik#getNetworkExecutor()}.
+     * Values take effect on next dispatch.
+     *
+     * @param maxPagesInFlight number of concurrent requests, at least 1
+     */
+    public void setMaxPagesInFlight(int maxPagesInFlight) {
+        mMaxPagesInFlight = Math.max(1, maxPagesInFlight);
+    }
+
+    public int getMaxPagesInFlight() {
+        return mMaxPagesInFlight;
+    }
+
+    /**
+     * Sends bulk requests in the {@link CompactBulkFormat}, which carries parameters shared by all events of a page only once.
+     * Only enable this if the requests go through a proxy that expands them again, Piwik doesn't understand the format.
+     * Values take effect on next dispatch.
+     */
+    public void setCompactBulkFormat(boolean compact) {
+        mCompactBulkFormat = compact;
+    }
+
+    public boolean isCompactBulkFormat() {
+        return mCompactBulkFormat;
+    }
+
+    /**
+     * Adapts the dispatch interval to connectivity and charging state, see {@link DispatchScheduler}.
+     *
+     * @param scheduler null to always dispatch at the fixed interval, which is the default
+     */
+    public void setScheduler(@Nullable DispatchScheduler scheduler) {
+        DispatchScheduler previous = mScheduler;
+        if (previous == scheduler)
+            return;
+        if (previous != null)
+            previous.stop();
+        mScheduler = scheduler;
+        if (scheduler != null)
+            scheduler.start(mSchedulerListener);
+    }
+
+    @Nullable
+    public DispatchScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    // Held here, the scheduler only keeps a weak reference so that it doesn't keep a dropped dispatcher alive
+    private final DispatchScheduler.Listener mSchedulerListener = new DispatchScheduler.Listener() {
         @Override
-        public void run() {
-            android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-            while (mRunning) {
-                try {
-                    // Either we wait the interval or forceDispatch() granted us one free pass
-                    mSleepToken.tryAcquire(mDispatchInterval, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        public void onConditionsImproved() {
+            onDispatchConditionsImproved();
+        }
+    };
+
+    /**
+     * Runs what was deferred while offline and brings the next cycle forward if the interval got shorter.
+     * Unlike forceDispatch() this neither skips the backoff nor sends bulk events before they are due,
+     * a flapping connection must not turn into a burst of requests.
+     */
+    private void onDispatchConditionsImproved() {
+        DispatchScheduler scheduler = mScheduler;
+        if (scheduler == null || mDispatchQueue.isEmpty())
+            return;
+        synchronized (mThreadControl) {
+            if (mDispatchDeferred) {
+                mDispatchDeferred = false;
+                if (mRunning)
+                    return;
+                Timber.tag(LOGGER_TAG).d("Back online, dispatching deferred events.");
+                mRunning = true;
+                if (mDispatchInterval < 0) {
+                    // Only a forced dispatch is deferred in manual mode
+                    mSkipWait = true;
+                    scheduleCycle();
+                } else {
+                    // The regular cycle that was due didn't get to send
+                    mCycleLane = Priority.NORMAL;
+                    mRegularCycleDue = 0;
+                    schedule(Math.max(0, getRemainingBackoff()));
                 }
+                return;
+            }
+            if (!mRunning || mDispatchInterval < 0 || mCycleLane != Priority.NORMAL)
+                return;
+            long due = System.currentTimeMillis() + Math.max(0, scheduler.getInterval(mDispatchInterval));
+            if (due < mRegularCycleDue && mNextCycle != null && mNextCycle.cancel(false)) {
+                Timber.tag(LOGGER_TAG).d("Dispatch conditions improved, dispatching sooner.");
+                mExecutor.purge();
+                mRegularCycleDue = due;
+                scheduleCycle();
+            }
+        }
+    }
+
+    /**
+     * {@link Priority#CRITICAL} events don't wait for the dispatch interval, only this long for others to join them.
+     * Critical cycles send only critical events, the others keep waiting for the interval.
+     * Nothing is sent before a manual dispatch if the dispatch interval is negative.
+     *
+     * @param linger in milliseconds, defaults to {@link #DEFAULT_CRITICAL_LINGER}
+     */
+    public void setCriticalLinger(long linger) {
+        mCriticalLinger = Math.max(0, linger);
+    }
+
+    public long getCriticalLinger() {
+        return mCriticalLinger;
+    }
+
+    /**
+     * {@link Priority#BULK} events skip regular dispatches until they fill a whole page or the oldest waited this long.
+     * Forced dispatches send them right away.
+     *
+     * @param bulkDelay in milliseconds, defaults to {@link #DEFAULT_BULK_DELAY}
+     */
+    public void setBulkDelay(long bulkDelay) {
+        mBulkDelay = Math.max(0, bulkDelay);
+    }
+
+    public long getBulkDelay() {
+        return mBulkDelay;
+    }
+
+    /**
+     * Controls how events of failed dispatches are retried.
+     */
+    @NonNull
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /**
+     * Stops sending while the server is down, disabled by default.
+     */
+    @NonNull
+    public CircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+
+    /**
+     * Controls how many events are sent per bulk request.
+     */
+    @NonNull
+    public PageSizer getPageSizer() {
+        return mPageSizer;
+    }
+
+    public void submit(String query) {
+        submit(query, Priority.NORMAL);
+    }
+
+    public void submit(String query, @NonNull Priority priority) {
+        submit(new Event(query, priority));
+    }
 
-                int count = 0;
-                List<String> availableEvents = new ArrayList<>();
-                mDispatchQueue.drainTo(availableEvents);
-                Timber.tag(LOGGER_TAG).d("Drained %s events.", availableEvents.size());
-                TrackerBulkURLWrapper wrapper = new TrackerBulkURLWrapper(mApiUrl, availableEvents, mAuthToken);
-                Iterator<TrackerBulkURLWrapper.Page> pageIterator = wrapper.iterator();
-                while (pageIterator.hasNext()) {
-                    TrackerBulkURLWrapper.Page page = pageIterator.next();
-
-                    // use doGET when only event on current page
-                    if (page.elementsCount() > 1) {
-                        JSONObject eventData = wrapper.getEvents(page);
-                        if (eventData == null)
-                            continue;
-                        if (dispatch(new Packet(wrapper.getApiUrl(), eventData)))
-                            count += page.elementsCount();
+    public void submit(@NonNull Event event) {
+        mDispatchQueue.add(event);
+        if (mDispatchInterval != -1 && !launch() && event.getPriority() == Priority.CRITICAL)
+            lingerCritical();
+    }
+
+    private final Runnable mCycle = new Runnable() {
+        @Override
+        public void run() {
+            DispatchScheduler scheduler = mScheduler;
+            if (scheduler != null && !scheduler.isDispatchAllowed()) {
+                // Doomed to fail, the scheduler wakes us up once we are back online.
+                // Not polling in the meantime, with a short interval that would keep the device busy.
+                Timber.tag(LOGGER_TAG).d("Offline, deferring dispatch.");
+                synchronized (mThreadControl) {
+                    if (scheduler.isDispatchAllowed()) {
+                        // Back online before we got here, the wake-up may have been missed
+                        scheduleCycle();
                     } else {
-                        URL targetURL = wrapper.getEventUrl(page);
-                        if (targetURL == null)
-                            continue;
-                        if (dispatch(new Packet(targetURL)))
-                            count += 1;
+                        mDispatchDeferred = true;
+                        mRunning = false;
                     }
                 }
-                Timber.tag(LOGGER_TAG).d("Dispatched %s events.", count);
+                return;
+            }
+
+            if (!mCircuitBreaker.allowRequest()) {
+                // The server is down, events keep queuing until we may probe it
+                Timber.tag(LOGGER_TAG).d("Circuit open, keeping events queued.");
                 synchronized (mThreadControl) {
-                    // We may be done or this was a forced dispatch
-                    if (mDispatchQueue.isEmpty() || mDispatchInterval < 0) {
+                    if (mDispatchInterval < 0) {
                         mRunning = false;
-                        break;
+                    } else {
+                        mBackoffUntil = Math.max(mBackoffUntil, System.currentTimeMillis() + mCircuitBreaker.getRemainingOpenTime());
+                        scheduleCycle();
                     }
                 }
+                return;
+            }
+            boolean probe = mCircuitBreaker.isEnabled() && mCircuitBreaker.getState() == CircuitBreaker.State.HALF_OPEN;
+
+            Priority lane;
+            synchronized (mThreadControl) {
+                lane = mCycleLane;
+            }
+            if (lane == Priority.NORMAL && isBulkDue())
+                lane = Priority.BULK;
+
+            Cycle cycle = new Cycle();
+            try {
+                List<Event> availableEvents = new ArrayList<>();
+                mDispatchQueue.drainTo(availableEvents, lane);
+                Timber.tag(LOGGER_TAG).d("Drained %s events of priority %s and up.", availableEvents.size(), lane);
+                if (probe) {
+                    int probeSize = Math.min(mCircuitBreaker.getProbeSize(), availableEvents.size());
+                    mDispatchQueue.requeue(new ArrayList<>(availableEvents.subList(probeSize, availableEvents.size())));
+                    availableEvents = new ArrayList<>(availableEvents.subList(0, probeSize));
+                    cycle = dispatchEvents(availableEvents);
+                } else {
+                    cycle = mMaxPagesInFlight > 1 ? dispatchConcurrently(availableEvents) : dispatchEvents(availableEvents);
+                }
+                mBackoffUntil = cycle.backoff > 0 ? System.currentTimeMillis() + cycle.backoff : 0;
+                if (!cycle.retryEvents.isEmpty())
+                    mDispatchQueue.requeue(cycle.retryEvents);
+                Timber.tag(LOGGER_TAG).d("Dispatched %s events.", cycle.count);
+            } catch (RuntimeException e) {
+                // Don't let a bug end dispatching for good
+                Timber.tag(LOGGER_TAG).e(e, "Dispatch failed.");
+            }
+
+            synchronized (mThreadControl) {
+                if (cycle.resized && cycle.backoff == 0)
+                    mSkipWait = true; // Retry the split pages right away
+                if (probe)
+                    // Only if the server is back the rest of the backlog is sent right away, otherwise the breaker's wait holds
+                    mSkipWait = mCircuitBreaker.getState() == CircuitBreaker.State.CLOSED;
+                // We may be done or this was a forced dispatch
+                if (mDispatchQueue.isEmpty() || mDispatchInterval < 0) {
+                    mRunning = false;
+                } else {
+                    scheduleCycle();
+                }
             }
         }
     };
 
+    /**
+     * Bulk events are coalesced into full pages, unless they waited too long.
+     */
+    private boolean isBulkDue() {
+        if (mDispatchQueue.size(Priority.BULK) >= mPageSizer.getPageSize())
+            return true;
+        long oldest = mDispatchQueue.getOldestTimestamp(Priority.BULK);
+        return oldest >= 0 && System.currentTimeMillis() - oldest >= mBulkDelay;
+    }
+
+    /**
+     * Outcome of dispatching a batch of events.
+     */
+    private static class Cycle {
+        int count = 0;
+        long backoff = 0;
+        boolean resized = false;
+        final List<Event> retryEvents = new ArrayList<>();
+
+        void merge(Cycle other) {
+            count += other.count;
+            backoff = Math.max(backoff, other.backoff);
+            resized |= other.resized;
+            retryEvents.addAll(other.retryEvents);
+        }
+    }
+
+    /**
+     * Sends the events page by page, in order.
+     */
+    private Cycle dispatchEvents(List<Event> events) {
+        Cycle cycle = new Cycle();
+        List<String> queries = new ArrayList<>(events.size());
+        for (Event event : events)
+            queries.add(event.getQuery());
+        TrackerBulkURLWrapper wrapper = new TrackerBulkURLWrapper(mApiUrl, queries, mAuthToken, mPageSizer);
+        wrapper.setCompact(mCompactBulkFormat);
+        Iterator<TrackerBulkURLWrapper.Page> pageIterator = wrapper.iterator();
+        while (pageIterator.hasNext()) {
+            TrackerBulkURLWrapper.Page page = pageIterator.next();
+            List<Event> pageEvents = events.subList(page.fromIndex, page.toIndex);
+
+            if (cycle.backoff > 0) {
+                // The server is struggling, don't hammer it with the remaining pages
+                cycle.retryEvents.addAll(pageEvents);
+                continue;
+            }
+
+            Packet packet;
+            // use doGET when only event on current page
+            if (page.elementsCount() > 1) {
+                JSONObject eventData = wrapper.getEvents(page);
+                packet = eventData != null ? new Packet(wrapper.getApiUrl(), eventData) : null;
+            } else {
+                URL targetURL = wrapper.getEventUrl(page);
+                packet = targetURL != null ? new Packet(targetURL) : null;
+            }
+            if (packet == null) {
+                mDispatchQueue.discard(pageEvents);
+                continue;
+            }
+
+            DispatchResult result = dispatchForResult(packet);
+            mPageSizer.onPageDispatched(page.elementsCount(), result, result.getLatency());
+            mCircuitBreaker.onResult(result);
+            if (result.isSuccess()) {
+                cycle.count += page.elementsCount();
+                mConsecutiveFailures.set(0);
+                // Unacknowledged events stay in the store and are replayed by the next process
+                mDispatchQueue.acknowledge(pageEvents);
+            } else if (result.getStatusCode() == HttpURLConnection.HTTP_ENTITY_TOO_LARGE && mPageSizer.getPageSize() < page.elementsCount()) {
+                // Nothing wrong with the events, they just need to be split up, which the PageSizer took care of.
+                // Pages that can't get any smaller are retried after a backoff like other temporary failures.
+                cycle.retryEvents.addAll(pageEvents);
+                cycle.resized = true;
+            } else if (result.isRetryable()) {
+                List<Event> exhaustedEvents = new ArrayList<>();
+                for (Event event : pageEvents) {
+                    event.incrementAttempts();
+                    if (mRetryPolicy.isExhausted(event)) {
+                        exhaustedEvents.add(event);
+                    } else {
+                        cycle.retryEvents.add(event);
+                    }
+                }
+                mDispatchQueue.discard(exhaustedEvents);
+                cycle.backoff = mRetryPolicy.getBackoff(mConsecutiveFailures.incrementAndGet(), result);
+                Timber.tag(LOGGER_TAG).d("Retrying %d events in %dms, %d exhausted.", pageEvents.size() - exhaustedEvents.size(), cycle.backoff, exhaustedEvents.size());
+            } else {
+                Timber.tag(LOGGER_TAG).w("Server rejected %d events: %s", pageEvents.size(), result);
+                mDispatchQueue.discard(pageEvents);
+            }
+        }
+        return cycle;
+    }
+
+    /**
+     * Splits the events into one lane per worker and dispatches the lanes in parallel.
+     * All events of a visitor end up in the same lane, so the server still receives them in order.
+     */
+    private Cycle dispatchConcurrently(List<Event> events) {
+        int lanes = mMaxPagesInFlight;
+        List<List<Event>> partitions = new ArrayList<>(lanes);
+        for (int i = 0; i < lanes; i++)
+            partitions.add(new ArrayList<Event>());
+        for (Event event : events)
+            partitions.get((getVisitorId(event.getQuery()).hashCode() & Integer.MAX_VALUE) % lanes).add(event);
+
+        List<FutureTask<Cycle>> lanesInFlight = new ArrayList<>(lanes);
+        List<List<Event>> submitted = new ArrayList<>(lanes);
+        for (final List<Event> partition : partitions) {
+            if (partition.isEmpty())
+                continue;
+            submitted.add(partition);
+            FutureTask<Cycle> lane = new FutureTask<>(new Callable<Cycle>() {
+                @Override
+                public Cycle call() throws Exception {
+                    return dispatchEvents(partition);
+                }
+            });
+            lanesInFlight.add(lane);
+            try {
+                mExecutor.execute(lane);
+            } catch (RejectedExecutionException e) {
+                Timber.tag(LOGGER_TAG).w(e, "Dispatching lane on the current thread.");
+            }
+        }
+
+        Cycle cycle = new Cycle();
+        for (int i = 0; i < lanesInFlight.size(); i++) {
+            try {
+                // The shared executor may have no thread to spare, lanes nobody picked up yet are dispatched by us
+                lanesInFlight.get(i).run();
+                cycle.merge(lanesInFlight.get(i).get());
+            } catch (InterruptedException | ExecutionException e) {
+                Timber.tag(LOGGER_TAG).w(e, "Dispatch lane failed");
+                // Some of these may have been sent already, but sending them twice beats losing them
+                cycle.retryEvents.addAll(submitted.get(i));
+            }
+        }
+        return cycle;
+    }
+
+    /**
+     * @return the value of the _id parameter or an empty string
+     */
+    @NonNull
+    static String getVisitorId(@NonNull String query) {
+        int start = query.indexOf("_id=");
+        while (start > 0 && query.charAt(start - 1) != '?' && query.charAt(start - 1) != '&')
+            start = query.indexOf("_id=", start + 1);
+        if (start < 0)
+            return "";
+        start += 4;
+        int end = query.indexOf('&', start);
+        return end < 0 ? query.substring(start) : query.substring(start, end);
+    }
+
     @VisibleForTesting
     public boolean dispatch(@NonNull Packet packet) {
+        return dispatchForResult(packet).isSuccess();
+    }
+
+    @VisibleForTesting
+    public DispatchResult dispatchForResult(@NonNull Packet packet) {
         // Some error checking
         if (packet.getTargetURL() == null)
-            return false;
+            return DispatchResult.forException(new IllegalArgumentException("Packet without target"));
         if (packet.getJSONObject() != null && packet.getJSONObject().length() == 0)
-            return false;
+            return DispatchResult.forException(new IllegalArgumentException("Packet with empty body"));
 
         if (mPiwik.isDryRun()) {
             mDryRunOutput.add(packet);
             Timber.tag(LOGGER_TAG).d("DryRun, stored HttpRequest, now %s.", mDryRunOutput.size());
-            return true;
+            return DispatchResult.forStatus(HttpURLConnection.HTTP_OK);
         }
 
         if (!mDryRunOutput.isEmpty())
             mDryRunOutput.clear();
 
-        try {
-            HttpURLConnection urlConnection = (HttpURLConnection) packet.getTargetURL().openConnection();
-            urlConnection.setConnectTimeout(mTimeOut);
-            urlConnection.setReadTimeout(mTimeOut);
-
-            // IF there is json data we want to do a post
-            if (packet.getJSONObject() != null) {
-                // POST
-                urlConnection.setDoOutput(true); // Forces post
-                urlConnection.setRequestProperty("Content-Type", "application/json");
-                urlConnection.setRequestProperty("charset", "utf-8");
-
-                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(urlConnection.getOutputStream(), "UTF-8"));
-                writer.write(packet.getJSONObject().toString());
-                writer.flush();
-                writer.close();
-            } else {
-                // GET
-                urlConnection.setDoOutput(false); // Defaults to false, but for readability
-            }
-
-            int statusCode = urlConnection.getResponseCode();
-            Timber.tag(LOGGER_TAG).d("status code %s", statusCode);
-            return statusCode == HttpURLConnection.HTTP_NO_CONTENT || statusCode == HttpURLConnection.HTTP_OK;
-        } catch (Exception e) {
-            // Broad but an analytics app shouldn't impact it's host app.
-            Timber.tag(LOGGER_TAG).w(e, "Cannot send request");
-        }
-        return false;
+        Transport transport = mTransport;
+        long start = System.currentTimeMillis();
+        DispatchResult result = transport.send(packet);
+        if (result.getLatency() < 0)
+            result = new DispatchResult(result.getStatusCode(), result.getRetryAfter(), result.getException(), System.currentTimeMillis() - start);
+        return result;
     }
 
     /**
      * http://stackoverflow.com/q/4737841
      *
      * @param param raw data
-     * @return encoded string
+     * @return encoded string, see {@link PercentEncoder}
      */
     public static String urlEncodeUTF8(String param) {
-        try {
-            return URLEncoder.encode(param, "UTF-8").replaceAll("\\+", "%20");
-        } catch (UnsupportedEncodingException e) {
-            Timber.tag(LOGGER_TAG).e(e, "Cannot encode %s", param);
-            return "";
-        } catch (NullPointerException e) {
+        if (param == null)
             return "";
-        }
+        return PercentEncoder.encode(param);
     }
 
     /**
@@ -250,16 +805,43 @@ public class Dispatcher {
      * @return String "?idsite=1&url=http://example.org&action_name=Test bulk log view&rec=1"
      */
     public static String urlEncodeUTF8(Map<String, String> map) {
-        StringBuilder sb = new StringBuilder(100);
+        StringBuilder sb = QUERY_BUILDER.get();
+        sb.setLength(0);
         sb.append('?');
         for (Map.Entry<String, String> entry : map.entrySet()) {
-            sb.append(urlEncodeUTF8(entry.getKey()));
+            if (sb.length() > 1)
+                sb.append('&');
+            if (entry.getKey() != null)
+                PercentEncoder.append(sb, entry.getKey());
             sb.append('=');
-            sb.append(urlEncodeUTF8(entry.getValue()));
-            sb.append('&');
+            if (entry.getValue() != null)
+                PercentEncoder.append(sb, entry.getValue());
         }
+        String query = sb.length() > 1 ? sb.toString() : "";
+        // Don't let one huge query pin its buffer for the lifetime of the thread
+        if (sb.capacity() > MAX_QUERY_BUILDER_CAPACITY)
+            QUERY_BUILDER.remove();
+        return query;
+    }
 
-        return sb.substring(0, sb.length() - 1);
+    /**
+     * Same as {@code urlEncodeUTF8(trackMe.toMap())} without building the map.
+     *
+     * @param trackMe the event
+     * @return String "?idsite=1&url=http://example.org&action_name=Test bulk log view&rec=1"
+     */
+    public static String urlEncodeUTF8(@NonNull TrackMe trackMe) {
+        StringBuilder sb = QUERY_BUILDER.get();
+        sb.setLength(0);
+        trackMe.appendQuery(sb);
+        String query = "";
+        if (sb.length() > 0) {
+            sb.setCharAt(0, '?');
+            query = sb.toString();
+        }
+        if (sb.capacity() > MAX_QUERY_BUILDER_CAPACITY)
+            QUERY_BUILDER.remove();
+        return query;
     }
 
     public List<Packet> getDryRunOutput() {
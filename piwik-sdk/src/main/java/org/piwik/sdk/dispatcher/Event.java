@@ -0,0 +1,81 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+
+/**
+ * One encoded query that waits in the {@link Dispatcher} queue.
+ */
+public class Event {
+    private final String mQuery;
+    private final Priority mPriority;
+    private final long mTimestamp = System.currentTimeMillis();
+    private long mStoreId = -1;
+    private int mAttempts = 0;
+
+    public Event(@NonNull String query) {
+        this(query, Priority.NORMAL);
+    }
+
+    public Event(@NonNull String query, @NonNull Priority priority) {
+        mQuery = query;
+        mPriority = priority;
+    }
+
+    /**
+     * @return query of the event ?r=1&sideId=1..
+     */
+    @NonNull
+    public String getQuery() {
+        return mQuery;
+    }
+
+    /**
+     * @return approximate heap size of the query in bytes
+     */
+    public int getMemorySize() {
+        return mQuery.length() * 2;
+    }
+
+    @NonNull
+    public Priority getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @return when this event was queued, or replayed from an {@link EventStore}
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return how often dispatching this event failed
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    void incrementAttempts() {
+        mAttempts++;
+    }
+
+    /**
+     * Position of this event within an {@link EventStore}
+     *
+     * @return -1 if the event was not persisted
+     */
+    public long getStoreId() {
+        return mStoreId;
+    }
+
+    public void setStoreId(long storeId) {
+        mStoreId = storeId;
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.piwik.sdk.Piwik;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import timber.log.Timber;
+
+/**
+ * FIFO of events waiting for the {@link Dispatcher}.
+ * <p/>
+ * Unbounded by default. If a limit is set, events that do not fit are handled according to the {@link OverflowPolicy}.
+ * If an {@link EventStore} is set, events are persisted before they are queued.
+ * Events of all {@link Priority}s share the limits, but can be drained per priority.
+ */
+public class EventQueue {
+    private static final String LOGGER_TAG = Piwik.LOGGER_PREFIX + "EventQueue";
+
+    public enum OverflowPolicy {
+        /**
+         * Remove the oldest queued events to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Reject the new event.
+         */
+        DROP_NEWEST,
+        /**
+         * Remove random events of the lowest queued {@link Priority} to make room.
+         * Random instead of oldest so what remains is a sample spread over the whole offline period.
+         * If the new event has a lower priority than all queued events, it is rejected.
+         */
+        SAMPLE_BY_PRIORITY,
+        /**
+         * Keep events that do not fit only on disk and read them back once the queue was drained.
+         * Requires a {@link DiskEventStore}, falls back to {@link #DROP_OLDEST} otherwise.
+         */
+        SPILL_TO_DISK
+    }
+
+    private final LinkedList<Event> mEvents = new LinkedList<>();
+    private final int[] mPriorityCounts = new int[Priority.values().length];
+    private final Random mRandom = new Random();
+    private EventStore mEventStore;
+    private OverflowPolicy mOverflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private int mMaxEvents = -1;
+    private long mMaxBytes = -1;
+    private long mBytes = 0;
+    private long mDroppedEvents = 0;
+    private long mSpilledEvents = 0;
+    // Range of store ids that are only on disk, once spilling started every new event goes there to keep the order.
+    private long mSpillFrom = -1;
+    private long mSpillTo = -1;
+
+    /**
+     * @param maxEvents maximum number of queued events, -1 for no limit
+     */
+    public synchronized void setMaxEvents(int maxEvents) {
+        mMaxEvents = maxEvents;
+    }
+
+    public synchronized int getMaxEvents() {
+        return mMaxEvents;
+    }
+
+    /**
+     * @param maxBytes maximum memory the queued events may use, see {@link Event#getMemorySize()}, -1 for no limit
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized void setOverflowPolicy(@NonNull OverflowPolicy overflowPolicy) {
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    @NonNull
+    public synchronized OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * @return how many events were given up, because the queue was full or dispatching them failed for good
+     */
+    public synchronized long getDroppedEvents() {
+        return mDroppedEvents;
+    }
+
+    /**
+     * @return how many events were moved to disk because the queue was full
+     */
+    public synchronized long getSpilledEvents() {
+        return mSpilledEvents;
+    }
+
+    /**
+     * Sets the store and queues what it could replay.
+     */
+    public void setEventStore(@Nullable EventStore eventStore) {
+        List<Event> replayed = eventStore != null ? eventStore.replay() : Collections.<Event>emptyList();
+        synchronized (this) {
+            mEventStore = eventStore;
+            for (Event event : replayed)
+                enqueue(event);
+        }
+    }
+
+    @Nullable
+    public synchronized EventStore getEventStore() {
+        return mEventStore;
+    }
+
+    public synchronized void add(@NonNull Event event) {
+        // Persisting under the queue lock keeps store ids in queue order
+        if (mEventStore != null)
+            mEventStore.persist(event);
+        enqueue(event);
+    }
+
+    /**
+     * Puts events back at the head of the queue, e.g. after a failed dispatch.
+     * They are persisted already and were within the limits when they got drained, so the limits are not applied again.
+     */
+    public synchronized void requeue(@NonNull List<Event> events) {
+        for (int i = events.size() - 1; i >= 0; i--) {
+            mEvents.addFirst(events.get(i));
+            mBytes += events.get(i).getMemorySize();
+            mPriorityCounts[events.get(i).getPriority().ordinal()]++;
+        }
+    }
+
+    /**
+     * Gives up on events, they are counted as dropped and removed from the {@link EventStore}.
+     */
+    public void discard(@NonNull List<Event> events) {
+        EventStore eventStore;
+        synchronized (this) {
+            mDroppedEvents += events.size();
+            eventStore = mEventStore;
+        }
+        if (eventStore != null)
+            eventStore.acknowledge(events);
+    }
+
+    /**
+     * Confirms events as delivered to the {@link EventStore}.
+     */
+    public void acknowledge(@NonNull List<Event> events) {
+        EventStore eventStore = getEventStore();
+        if (eventStore != null)
+            eventStore.acknowledge(events);
+    }
+
+    public synchronized boolean isEmpty() {
+        return mEvents.isEmpty() && !isSpilling();
+    }
+
+    /**
+     * @return number of queued events, including spilled ones
+     */
+    public synchronized int size() {
+        return mEvents.size() + (isSpilling() ? (int) (mSpillTo - mSpillFrom) : 0);
+    }
+
+    /**
+     * @return number of queued events of this priority, without spilled ones
+     */
+    public synchronized int size(@NonNull Priority priority) {
+        return mPriorityCounts[priority.ordinal()];
+    }
+
+    /**
+     * @return timestamp of the oldest queued event of this priority, -1 if there is none
+     */
+    public synchronized long getOldestTimestamp(@NonNull Priority priority) {
+        if (mPriorityCounts[priority.ordinal()] == 0)
+            return -1;
+        for (Event event : mEvents) {
+            if (event.getPriority() == priority)
+                return event.getTimestamp();
+        }
+        return -1;
+    }
+
+    /**
+     * Removes all queued events.
+     * Spilled events are read back from disk, at most as many as the queue limits allow at once.
+     */
+    public void drainTo(@NonNull List<Event> target) {
+        drainTo(target, Priority.BULK);
+    }
+
+    /**
+     * Removes the queued events of at least the given priority, in queue order.
+     * Spilled events are read back unless only critical events are drained, the store doesn't know their priority.
+     *
+     * @param lowest {@link Priority#BULK} to drain everything
+     */
+    public void drainTo(@NonNull List<Event> target, @NonNull Priority lowest) {
+        DiskEventStore spillStore;
+        long spillFrom;
+        long spillTo;
+        int maxEvents;
+        long maxBytes;
+        synchronized (this) {
+            if (lowest == Priority.BULK) {
+                target.addAll(mEvents);
+                mEvents.clear();
+                mBytes = 0;
+                Arrays.fill(mPriorityCounts, 0);
+            } else {
+                Iterator<Event> iterator = mEvents.iterator();
+                while (iterator.hasNext()) {
+                    Event event = iterator.next();
+                    if (event.getPriority().compareTo(lowest) >= 0) {
+                        iterator.remove();
+                        mBytes -= event.getMemorySize();
+                        mPriorityCounts[event.getPriority().ordinal()]--;
+                        target.add(event);
+                    }
+                }
+            }
+            if (!isSpilling() || lowest == Priority.CRITICAL)
+                return;
+            spillStore = (DiskEventStore) mEventStore;
+            spillFrom = mSpillFrom;
+            spillTo = mSpillTo;
+            maxEvents = mMaxEvents;
+            maxBytes = mMaxBytes;
+        }
+
+        List<Event> spilled = spillStore.read(spillFrom, spillTo, maxEvents, maxBytes);
+        target.addAll(spilled);
+        synchronized (this) {
+            if (spilled.isEmpty()) {
+                // Should not happen unless the disk failed us
+                Timber.tag(LOGGER_TAG).w("Lost %d spilled events.", spillTo - spillFrom);
+                mDroppedEvents += spillTo - spillFrom;
+                mSpillFrom = spillTo;
+            } else {
+                mSpillFrom = spilled.get(spilled.size() - 1).getStoreId() + 1;
+            }
+            if (mSpillFrom >= mSpillTo)
+                mSpillFrom = mSpillTo = -1;
+        }
+    }
+
+    private boolean isSpilling() {
+        return mSpillFrom != -1;
+    }
+
+    private boolean fits(long additionalBytes) {
+        return (mMaxEvents < 0 || mEvents.size() < mMaxEvents) && (mMaxBytes < 0 || mBytes + additionalBytes <= mMaxBytes);
+    }
+
+    private void enqueue(Event event) {
+        if (isSpilling() && event.getStoreId() >= 0) {
+            spill(event);
+            return;
+        }
+
+        int size = event.getMemorySize();
+        if (fits(size)) {
+            push(event);
+            return;
+        }
+
+        OverflowPolicy policy = mOverflowPolicy;
+        if (policy == OverflowPolicy.SPILL_TO_DISK) {
+            if (mEventStore instanceof DiskEventStore && event.getStoreId() >= 0) {
+                spill(event);
+                return;
+            }
+            Timber.tag(LOGGER_TAG).w("Can't spill without a DiskEventStore, dropping oldest instead.");
+            policy = OverflowPolicy.DROP_OLDEST;
+        }
+
+        List<Event> dropped = new ArrayList<>();
+        if (policy == OverflowPolicy.DROP_NEWEST || (mMaxBytes >= 0 && size > mMaxBytes)) {
+            dropped.add(event);
+        } else {
+            while (!fits(size)) {
+                Event victim = policy == OverflowPolicy.SAMPLE_BY_PRIORITY ? sampleLowestPriority(event.getPriority()) : removeOldest();
+                if (victim == null)
+                    break;
+                dropped.add(victim);
+            }
+            if (fits(size)) {
+                push(event);
+            } else {
+                dropped.add(event);
+            }
+        }
+
+        mDroppedEvents += dropped.size();
+        Timber.tag(LOGGER_TAG).d("Queue is full, dropped %d events.", dropped.size());
+        // Dropped is final, the store does not need to keep them either
+        if (mEventStore != null)
+            mEventStore.acknowledge(dropped);
+    }
+
+    /**
+     * Removes a random event of the lowest queued priority.
+     *
+     * @return the removed event or null if all queued events are more important than the given priority
+     */
+    private Event sampleLowestPriority(Priority limit) {
+        Priority lowest = null;
+        int candidates = 0;
+        for (Event queued : mEvents) {
+            if (lowest == null || queued.getPriority().compareTo(lowest) < 0) {
+                lowest = queued.getPriority();
+                candidates = 1;
+            } else if (queued.getPriority() == lowest) {
+                candidates++;
+            }
+        }
+        if (lowest == null || lowest.compareTo(limit) > 0)
+            return null;
+
+        int victim = mRandom.nextInt(candidates);
+        Iterator<Event> iterator = mEvents.iterator();
+        while (iterator.hasNext()) {
+            Event queued = iterator.next();
+            if (queued.getPriority() == lowest && victim-- == 0) {
+                iterator.remove();
+                mBytes -= queued.getMemorySize();
+                mPriorityCounts[queued.getPriority().ordinal()]--;
+                return queued;
+            }
+        }
+        return null;
+    }
+
+    private void push(Event event) {
+        mEvents.add(event);
+        mBytes += event.getMemorySize();
+        mPriorityCounts[event.getPriority().ordinal()]++;
+    }
+
+    private Event removeOldest() {
+        Event event = mEvents.poll();
+        if (event != null) {
+            mBytes -= event.getMemorySize();
+            mPriorityCounts[event.getPriority().ordinal()]--;
+        }
+        return event;
+    }
+
+    private void spill(Event event) {
+        // The event is already persisted, forgetting it here is enough
+        if (!isSpilling())
+            mSpillFrom = event.getStoreId();
+        mSpillTo = event.getStoreId() + 1;
+        mSpilledEvents++;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Keeps queued events around until the server has acknowledged them,
+ * so they can be replayed if the process dies before they were dispatched.
+ */
+public interface EventStore {
+
+    /**
+     * Called on the thread that tracked the event, implementations should not block.
+     *
+     * @param event the event, implementations may assign a {@link Event#setStoreId(long)}
+     */
+    void persist(@NonNull Event event);
+
+    /**
+     * Called once the server confirmed receiving these events.
+     *
+     * @param events previously persisted events
+     */
+    void acknowledge(@NonNull List<Event> events);
+
+    /**
+     * @return all events that were persisted but not acknowledged, in the order they were persisted
+     */
+    @NonNull
+    List<Event> replay();
+}
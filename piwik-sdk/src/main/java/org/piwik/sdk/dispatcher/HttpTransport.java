@@ -0,0 +1,154 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.piwik.sdk.Piwik;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.util.zip.GZIPOutputStream;
+
+import timber.log.Timber;
+
+/**
+ * Default {@link Transport} based on {@link HttpURLConnection}.
+ * Packets with a json body are sent as POST, all others as GET.
+ */
+public class HttpTransport implements Transport {
+    private static final String LOGGER_TAG = Piwik.LOGGER_PREFIX + "HttpTransport";
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024; // 1KB
+    private volatile int mTimeOut;
+    private volatile boolean mCompression = false;
+    private volatile int mCompressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+    /**
+     * @param timeOut connect and read timeout in milliseconds
+     */
+    public HttpTransport(int timeOut) {
+        mTimeOut = timeOut;
+    }
+
+    public void setTimeOut(int timeOut) {
+        mTimeOut = timeOut;
+    }
+
+    public int getTimeOut() {
+        return mTimeOut;
+    }
+
+    /**
+     * See {@link Dispatcher#setCompression(boolean)}
+     */
+    public void setCompression(boolean compression) {
+        mCompression = compression;
+    }
+
+    public boolean isCompression() {
+        return mCompression;
+    }
+
+    /**
+     * See {@link Dispatcher#setCompressionThreshold(int)}
+     */
+    public void setCompressionThreshold(int threshold) {
+        mCompressionThreshold = threshold;
+    }
+
+    public int getCompressionThreshold() {
+        return mCompressionThreshold;
+    }
+
+    @NonNull
+    @Override
+    public DispatchResult send(@NonNull Packet packet) {
+        long start = System.currentTimeMillis();
+        try {
+            HttpURLConnection urlConnection = (HttpURLConnection) packet.getTargetURL().openConnection();
+            urlConnection.setConnectTimeout(mTimeOut);
+            urlConnection.setReadTimeout(mTimeOut);
+
+            // IF there is json data we want to do a post
+            if (packet.getJSONObject() != null) {
+                // POST
+                urlConnection.setDoOutput(true); // Forces post
+                urlConnection.setRequestProperty("Content-Type", "application/json");
+                urlConnection.setRequestProperty("charset", "utf-8");
+
+                String body = packet.getJSONObject().toString();
+                OutputStream outputStream;
+                if (mCompression && body.length() >= mCompressionThreshold) {
+                    urlConnection.setRequestProperty("Content-Encoding", "gzip");
+                    // The compressed length is unknown upfront, stream it instead of buffering the whole body again
+                    urlConnection.setChunkedStreamingMode(0);
+                    outputStream = new GZIPOutputStream(urlConnection.getOutputStream());
+                } else {
+                    outputStream = urlConnection.getOutputStream();
+                }
+                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+                writer.write(body);
+                writer.flush();
+                // Also finishes the gzip trailer
+                writer.close();
+            } else {
+                // GET
+                urlConnection.setDoOutput(false); // Defaults to false, but for readability
+            }
+
+            int statusCode = urlConnection.getResponseCode();
+            Timber.tag(LOGGER_TAG).d("status code %s", statusCode);
+            long retryAfter = parseRetryAfter(urlConnection);
+            // Only a response that was read to its end and closed hands the connection back to the keep-alive pool
+            try {
+                drain(statusCode < HttpURLConnection.HTTP_BAD_REQUEST ? urlConnection.getInputStream() : urlConnection.getErrorStream());
+            } catch (IOException e) {
+                Timber.tag(LOGGER_TAG).d(e, "Cannot read response");
+            }
+            return new DispatchResult(statusCode, retryAfter, null, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            // Broad but an analytics app shouldn't impact it's host app.
+            Timber.tag(LOGGER_TAG).w(e, "Cannot send request");
+            return new DispatchResult(-1, -1, e, System.currentTimeMillis() - start);
+        }
+    }
+
+    private static void drain(@Nullable InputStream inputStream) throws IOException {
+        if (inputStream == null)
+            return;
+        try {
+            byte[] buffer = new byte[1024];
+            //noinspection StatementWithEmptyBody
+            while (inputStream.read(buffer) != -1) ;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Retry-After is either a number of seconds or a HTTP date
+     *
+     * @return milliseconds to wait or -1
+     */
+    private static long parseRetryAfter(HttpURLConnection urlConnection) {
+        String retryAfter = urlConnection.getHeaderField("Retry-After");
+        if (retryAfter == null)
+            return -1;
+        try {
+            return Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            long date = urlConnection.getHeaderFieldDate("Retry-After", -1);
+            return date != -1 ? Math.max(0, date - System.currentTimeMillis()) : -1;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+
+import org.piwik.sdk.Piwik;
+
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Decides how many events the {@link TrackerBulkURLWrapper} puts on one page, i.e. into one bulk request.
+ * <p/>
+ * A page holds at most {@link #getPageSize()} events and at most {@link #getMaxBytes()} bytes of queries.
+ * In adaptive mode the page size starts at {@link #DEFAULT_MAX_EVENTS}, grows while full pages are
+ * dispatched fast and successfully and is halved after timeouts or 413 responses, never exceeding {@link #getMaxEvents()}.
+ * A 413 halves the page size in fixed mode too, the server won't take pages that big anyway.
+ * After {@link #RESTORE_AFTER_SUCCESSES} successful pages the configured size is tried again.
+ */
+public class PageSizer {
+    private static final String LOGGER_TAG = Piwik.LOGGER_PREFIX + "PageSizer";
+    public static final int DEFAULT_MAX_EVENTS = 20;
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024; // 256KB
+    public static final long DEFAULT_TARGET_LATENCY = 2 * 1000; // 2s
+    private static final int GROW_AFTER_SUCCESSES = 2;
+    public static final int RESTORE_AFTER_SUCCESSES = 10;
+    private static final int HISTORY_SIZE = 50;
+
+    public enum Reason {
+        /**
+         * Full pages were dispatched faster than the target latency.
+         */
+        GROW,
+        /**
+         * A page took longer than twice the target latency.
+         */
+        SLOW,
+        /**
+         * A page timed out.
+         */
+        TIMEOUT,
+        /**
+         * The server rejected a page with 413 Request Entity Too Large.
+         */
+        TOO_LARGE,
+        /**
+         * Pages went through again after a 413 shrank the page size in fixed mode.
+         */
+        RESTORED,
+        /**
+         * The page size was configured.
+         */
+        CONFIGURED
+    }
+
+    public static class Change {
+        private final long mTimestamp;
+        private final int mPageSize;
+        private final Reason mReason;
+
+        Change(long timestamp, int pageSize, Reason reason) {
+            mTimestamp = timestamp;
+            mPageSize = pageSize;
+            mReason = reason;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * @return the page size from then on
+         */
+        public int getPageSize() {
+            return mPageSize;
+        }
+
+        @NonNull
+        public Reason getReason() {
+            return mReason;
+        }
+
+        @Override
+        public String toString() {
+            return mReason + "->" + mPageSize;
+        }
+    }
+
+    private final LinkedList<Change> mHistory = new LinkedList<>();
+    private int mMaxEvents = DEFAULT_MAX_EVENTS;
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private long mTargetLatency = DEFAULT_TARGET_LATENCY;
+    private boolean mAdaptive = false;
+    private int mPageSize = DEFAULT_MAX_EVENTS;
+    private int mSuccesses = 0;
+
+    /**
+     * @param maxEvents ceiling of events per page, the page size if not adaptive
+     */
+    public synchronized PageSizer setMaxEvents(int maxEvents) {
+        mMaxEvents = Math.max(1, maxEvents);
+        setPageSize(mAdaptive ? Math.min(mPageSize, mMaxEvents) : mMaxEvents, Reason.CONFIGURED);
+        return this;
+    }
+
+    public synchronized int getMaxEvents() {
+        return mMaxEvents;
+    }
+
+    /**
+     * A page always holds at least one event, even if that alone exceeds the budget.
+     *
+     * @param maxBytes byte budget of the queries on one page, -1 for no limit
+     */
+    public synchronized PageSizer setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+        return this;
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * @param targetLatency in milliseconds, pages dispatched faster may grow, pages taking twice as long shrink
+     */
+    public synchronized PageSizer setTargetLatency(long targetLatency) {
+        mTargetLatency = targetLatency;
+        return this;
+    }
+
+    public synchronized long getTargetLatency() {
+        return mTargetLatency;
+    }
+
+    public synchronized PageSizer setAdaptive(boolean adaptive) {
+        mAdaptive = adaptive;
+        setPageSize(adaptive ? Math.min(DEFAULT_MAX_EVENTS, mMaxEvents) : mMaxEvents, Reason.CONFIGURED);
+        return this;
+    }
+
+    public synchronized boolean isAdaptive() {
+        return mAdaptive;
+    }
+
+    /**
+     * @return current maximum of events per page
+     */
+    public synchronized int getPageSize() {
+        return mPageSize;
+    }
+
+    /**
+     * @return the latest page size changes, oldest first
+     */
+    @NonNull
+    public synchronized List<Change> getHistory() {
+        return new ArrayList<>(mHistory);
+    }
+
+    /**
+     * Feeds the outcome of a dispatched page back, adjusting the page size in adaptive mode.
+     *
+     * @param events  number of events on the page
+     * @param result  what the server answered
+     * @param latency milliseconds the request took
+     */
+    public synchronized void onPageDispatched(int events, @NonNull DispatchResult result, long latency) {
+        if (result.getStatusCode() == HttpURLConnection.HTTP_ENTITY_TOO_LARGE) {
+            shrink(events, Reason.TOO_LARGE);
+            return;
+        }
+        if (!mAdaptive) {
+            // One oversized batch must not shrink all later pages for good
+            if (result.isSuccess() && mPageSize < mMaxEvents && ++mSuccesses >= RESTORE_AFTER_SUCCESSES)
+                setPageSize(mMaxEvents, Reason.RESTORED);
+            return;
+        }
+
+        if (result.getException() instanceof SocketTimeoutException) {
+            shrink(events, Reason.TIMEOUT);
+        } else if (result.isSuccess() && latency > 2 * mTargetLatency) {
+            shrink(events, Reason.SLOW);
+        } else if (result.isSuccess() && latency <= mTargetLatency) {
+            // Pages that weren't full say nothing about whether bigger ones would work
+            if (events >= mPageSize && ++mSuccesses >= GROW_AFTER_SUCCESSES && mPageSize < mMaxEvents)
+                setPageSize(Math.min(mMaxEvents, mPageSize + Math.max(1, mPageSize / 2)), Reason.GROW);
+        } else if (!result.isSuccess()) {
+            // Other failures are the RetryPolicy's business, but they don't count as good either
+            mSuccesses = 0;
+        }
+    }
+
+    private void shrink(int events, Reason reason) {
+        // Base it on the failed page, it may have been smaller because of the byte budget
+        setPageSize(Math.max(1, Math.min(mPageSize, events) / 2), reason);
+    }
+
+    private void setPageSize(int pageSize, Reason reason) {
+        mSuccesses = 0;
+        if (pageSize == mPageSize && reason != Reason.CONFIGURED)
+            return;
+        mPageSize = pageSize;
+        mHistory.add(new Change(System.currentTimeMillis(), pageSize, reason));
+        if (mHistory.size() > HISTORY_SIZE)
+            mHistory.removeFirst();
+        Timber.tag(LOGGER_TAG).d("Page size %d (%s)", pageSize, reason);
+    }
+}
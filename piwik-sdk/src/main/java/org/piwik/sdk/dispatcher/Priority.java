@@ -0,0 +1,27 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.dispatcher;
+
+/**
+ * How valuable an event is, used to decide which events to give up first.
+ * Ordered from least to most important.
+ */
+public enum Priority {
+    /**
+     * Cheap high volume traffic.
+     */
+    BULK,
+    /**
+     * Default for all events.
+     */
+    NORMAL,
+    /**
+     * Events that should never be lost, e.g. goals and orders.
+     */
+    CRITICAL
+}
@@ -0,0 +1,107 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+
+import java.util.Random;
+
+/**
+ * Decides whether events of a failed dispatch are tried again and how long to wait before doing so.
+ * <p/>
+ * The wait is a random value between 0 and base delay * 2^consecutive failures, capped at the max delay.
+ * The randomness ("full jitter") keeps devices that lost their connection at the same time
+ * from reconnecting at the same time too.
+ */
+public class RetryPolicy {
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+    public static final long DEFAULT_BASE_DELAY = 5 * 1000; // 5s
+    public static final long DEFAULT_MAX_DELAY = 30 * 60 * 1000; // 30min
+
+    private final Random mRandom = new Random();
+    private volatile int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long mMaxAge = -1;
+    private volatile long mBaseDelay = DEFAULT_BASE_DELAY;
+    private volatile long mMaxDelay = DEFAULT_MAX_DELAY;
+
+    /**
+     * @param maxAttempts how often an event may fail before it is dropped, -1 for no limit
+     */
+    public RetryPolicy setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = maxAttempts;
+        return this;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * @param maxAge milliseconds after which a failed event is dropped instead of retried, -1 for no limit
+     */
+    public RetryPolicy setMaxAge(long maxAge) {
+        mMaxAge = maxAge;
+        return this;
+    }
+
+    public long getMaxAge() {
+        return mMaxAge;
+    }
+
+    /**
+     * @param baseDelay backoff after the first failure in milliseconds
+     */
+    public RetryPolicy setBaseDelay(long baseDelay) {
+        mBaseDelay = baseDelay;
+        return this;
+    }
+
+    public long getBaseDelay() {
+        return mBaseDelay;
+    }
+
+    /**
+     * @param maxDelay upper bound of the backoff in milliseconds
+     */
+    public RetryPolicy setMaxDelay(long maxDelay) {
+        mMaxDelay = maxDelay;
+        return this;
+    }
+
+    public long getMaxDelay() {
+        return mMaxDelay;
+    }
+
+    /**
+     * @param event an event whose dispatch failed and was already counted via {@link Event#getAttempts()}
+     * @return true if the event used up its budget
+     */
+    public boolean isExhausted(@NonNull Event event) {
+        int maxAttempts = mMaxAttempts;
+        long maxAge = mMaxAge;
+        return (maxAttempts >= 0 && event.getAttempts() >= maxAttempts)
+                || (maxAge >= 0 && System.currentTimeMillis() - event.getTimestamp() > maxAge);
+    }
+
+    /**
+     * @param failures consecutive failed dispatches, at least 1
+     * @param result   the last failure, its Retry-After is honored as lower bound
+     * @return milliseconds to wait before the next attempt
+     */
+    public long getBackoff(int failures, @NonNull DispatchResult result) {
+        long ceiling = mBaseDelay;
+        for (int i = 1; i < failures && ceiling < mMaxDelay; i++)
+            ceiling *= 2;
+        ceiling = Math.min(ceiling, mMaxDelay);
+        long backoff;
+        synchronized (mRandom) {
+            backoff = (long) (mRandom.nextDouble() * ceiling);
+        }
+        return Math.max(backoff, result.getRetryAfter());
+    }
+}
@@ -27,18 +27,39 @@ import timber.log.Timber;
 
 public class TrackerBulkURLWrapper {
     private static final String LOGGER_TAG = Piwik.LOGGER_PREFIX + "TrackerBulkURLWrapper";
-    private static final int EVENTS_PER_PAGE = 20;
-    private int mCurrentPage = 0;
-    private final int mPages;
+    private static final int EVENTS_PER_PAGE = PageSizer.DEFAULT_MAX_EVENTS;
+    // Quotes and comma around each query in the "requests" array
+    private static final int REQUEST_OVERHEAD = 3;
+    private int mNextIndex = 0;
     private final URL mApiUrl;
     private final String mAuthtoken;
     private final List<String> mEvents;
+    private final PageSizer mPageSizer;
+    private boolean mCompact = false;
 
     public TrackerBulkURLWrapper(@NonNull final URL apiUrl, @NonNull final List<String> events, @Nullable final String authToken) {
+        this(apiUrl, events, authToken, new PageSizer().setMaxBytes(-1));
+    }
+
+    /**
+     * @param pageSizer consulted for each page, so page size changes apply to the remaining pages
+     */
+    public TrackerBulkURLWrapper(@NonNull final URL apiUrl, @NonNull final List<String> events, @Nullable final String authToken, @NonNull PageSizer pageSizer) {
         mApiUrl = apiUrl;
         mAuthtoken = authToken;
-        mPages = (int) Math.ceil(events.size() * 1.0 / EVENTS_PER_PAGE);
         mEvents = events;
+        mPageSizer = pageSizer;
+    }
+
+    /**
+     * @param compact true to build page bodies in the {@link CompactBulkFormat}
+     */
+    public void setCompact(boolean compact) {
+        mCompact = compact;
+    }
+
+    public boolean isCompact() {
+        return mCompact;
     }
 
     protected static int getEventsPerPage() {
@@ -54,13 +75,25 @@ public class TrackerBulkURLWrapper {
         return new Iterator<Page>() {
             @Override
             public boolean hasNext() {
-                return mCurrentPage < mPages;
+                return mNextIndex < mEvents.size();
             }
 
             @Override
             public Page next() {
                 if (hasNext()) {
-                    return new Page(mCurrentPage++);
+                    int maxEvents = mPageSizer.getPageSize();
+                    long maxBytes = mPageSizer.getMaxBytes();
+                    int fromIndex = mNextIndex;
+                    int toIndex = fromIndex + 1;
+                    long bytes = mEvents.get(fromIndex).length() + REQUEST_OVERHEAD;
+                    while (toIndex < mEvents.size() && toIndex - fromIndex < maxEvents) {
+                        bytes += mEvents.get(toIndex).length() + REQUEST_OVERHEAD;
+                        if (maxBytes >= 0 && bytes > maxBytes)
+                            break;
+                        toIndex++;
+                    }
+                    mNextIndex = toIndex;
+                    return new Page(fromIndex, toIndex);
                 }
                 return null;
             }
@@ -82,6 +115,8 @@ public class TrackerBulkURLWrapper {
      * "?idsite=1&url=http://example.net/test.htm&action_name=Another bul k page view&rec=1"],
      * "token_auth": "33dc3f2536d3025974cccb4b4d2d98f4"
      * }
+     * <p/>
+     * or the {@link CompactBulkFormat} if enabled via {@link #setCompact(boolean)}.
      *
      * @return json object
      */
@@ -98,9 +133,14 @@ public class TrackerBulkURLWrapper {
             return null;
         }
 
-        JSONObject params = new JSONObject();
+        JSONObject params;
         try {
-            params.put("requests", new JSONArray(pageElements));
+            if (mCompact) {
+                params = CompactBulkFormat.compact(pageElements);
+            } else {
+                params = new JSONObject();
+                params.put("requests", new JSONArray(pageElements));
+            }
 
             if (mAuthtoken != null) {
                 params.put(QueryParams.AUTHENTICATION_TOKEN.toString(), mAuthtoken);
@@ -134,13 +174,9 @@ public class TrackerBulkURLWrapper {
 
         protected final int fromIndex, toIndex;
 
-        protected Page(int pageNumber) {
-            if (!(pageNumber >= 0 || pageNumber < mPages)) {
-                fromIndex = toIndex = -1;
-                return;
-            }
-            fromIndex = pageNumber * EVENTS_PER_PAGE;
-            toIndex = Math.min(fromIndex + EVENTS_PER_PAGE, mEvents.size());
+        protected Page(int fromIndex, int toIndex) {
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
         }
 
         public int elementsCount() {
@@ -0,0 +1,27 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Sends {@link Packet}s to the server on behalf of the {@link Dispatcher}.
+ * <p/>
+ * Implementations are called from the dispatch thread and, with {@link Dispatcher#setMaxPagesInFlight(int)},
+ * from several worker threads at once, so they have to be thread-safe.
+ */
+public interface Transport {
+    /**
+     * Sends the packet and waits for the response.
+     * Must not throw, failures are reported via {@link DispatchResult#forException(Exception)}.
+     *
+     * @return status code and latency of the response
+     */
+    @NonNull
+    DispatchResult send(@NonNull Packet packet);
+}
@@ -0,0 +1,58 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.tools;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the SDK's background work on a small number of low priority daemon threads.
+ * <p/>
+ * Threads are started on demand and end after being idle for {@link #KEEP_ALIVE} milliseconds.
+ * While a delayed task is pending one thread stays alive to run it, waking up every {@link #KEEP_ALIVE} milliseconds,
+ * the pool only drains completely once nothing is scheduled anymore. Cancelled tasks count as scheduled until
+ * {@link #purge()} removes them.
+ * Tasks must not wait for other tasks of this executor unless they can run these themselves,
+ * all threads may be busy.
+ */
+public class BackgroundExecutor extends ScheduledThreadPoolExecutor {
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_NETWORK_THREADS = 2;
+    public static final long KEEP_ALIVE = 10 * 1000; // 10s
+
+    public BackgroundExecutor(int threads, @NonNull final String name) {
+        super(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        } catch (UnsatisfiedLinkError e) {
+                            // Not on a device, e.g. the benchmarks on a desktop JVM
+                            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+                        }
+                        runnable.run();
+                    }
+                }, name + "-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        setKeepAliveTime(KEEP_ALIVE, TimeUnit.MILLISECONDS);
+        allowCoreThreadTimeOut(true);
+    }
+}
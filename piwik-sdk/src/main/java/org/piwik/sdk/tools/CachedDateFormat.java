@@ -0,0 +1,98 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.tools;
+
+import android.support.annotation.NonNull;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Formats timestamps as "yyyy-MM-dd HH:mm:ssZ" in the default time zone, e.g. for {@link org.piwik.sdk.QueryParams#DATETIME_OF_REQUEST}.
+ * <p/>
+ * Each thread keeps its own {@link SimpleDateFormat} and the last result.
+ * Within the same second the last result is returned, within the same minute only the seconds are rewritten,
+ * so the formatter only runs once per minute and thread. No locking needed.
+ * Changes of the default time zone are picked up at the next minute.
+ */
+public class CachedDateFormat {
+    private static final String PATTERN = "yyyy-MM-dd HH:mm:ssZ";
+    // Position of "ss" in the pattern, all fields before it have a fixed width
+    private static final int SECONDS_INDEX = 17;
+
+    private static final ThreadLocal<CachedDateFormat> INSTANCE = new ThreadLocal<CachedDateFormat>() {
+        @Override
+        protected CachedDateFormat initialValue() {
+            return new CachedDateFormat();
+        }
+    };
+
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat(PATTERN);
+    private final Date mDate = new Date();
+    private char[] mChars;
+    private String mFormatted;
+    private long mSecond = Long.MIN_VALUE;
+    // Epoch second and its seconds field of the last full format
+    private long mBaseSecond = Long.MIN_VALUE;
+    private int mBaseSeconds;
+    private char mZeroDigit = '0';
+
+    private CachedDateFormat() {
+    }
+
+    /**
+     * @return the current time, formatted
+     */
+    @NonNull
+    public static String now() {
+        return format(System.currentTimeMillis());
+    }
+
+    /**
+     * @return same as {@code new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ").format(new Date(timeMillis))}
+     */
+    @NonNull
+    public static String format(long timeMillis) {
+        return INSTANCE.get().formatCached(timeMillis);
+    }
+
+    private String formatCached(long timeMillis) {
+        long second = floorDiv(timeMillis, 1000);
+        if (second == mSecond)
+            return mFormatted;
+
+        long seconds = mBaseSeconds + (second - mBaseSecond);
+        if (mBaseSecond != Long.MIN_VALUE && seconds >= 0 && seconds < 60) {
+            // Still the same minute, time zone offsets don't change within it
+            mChars[SECONDS_INDEX] = (char) (mZeroDigit + seconds / 10);
+            mChars[SECONDS_INDEX + 1] = (char) (mZeroDigit + seconds % 10);
+            mFormatted = new String(mChars);
+        } else {
+            mDateFormat.setTimeZone(TimeZone.getDefault());
+            mDate.setTime(timeMillis);
+            mFormatted = mDateFormat.format(mDate);
+            mChars = mFormatted.toCharArray();
+            // Locales may use other digits than 0-9
+            int tens = Character.digit(mChars[SECONDS_INDEX], 10);
+            int ones = Character.digit(mChars[SECONDS_INDEX + 1], 10);
+            mZeroDigit = (char) (mChars[SECONDS_INDEX + 1] - ones);
+            mBaseSeconds = tens * 10 + ones;
+            mBaseSecond = second;
+        }
+        mSecond = second;
+        return mFormatted;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long result = x / y;
+        if ((x % y != 0) && ((x < 0) != (y < 0)))
+            result--;
+        return result;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.tools;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer.
+ * <p/>
+ * Each slot carries a sequence number telling whether it is free for the producer claiming position n (sequence n)
+ * or holds the element of position n for the consumer (sequence n + 1).
+ * Producers claim positions with a CAS on the tail, neither {@link #offer(Object)} nor {@link #poll()} ever block.
+ * {@link #poll()} and {@link #isEmpty()} must only be called from one thread at a time.
+ */
+public class MpscRingBuffer<E> {
+    private final int mMask;
+    private final AtomicReferenceArray<E> mElements;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail = new AtomicLong();
+    // Only touched by the consumer
+    private long mHead = 0;
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    public MpscRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        mMask = size - 1;
+        mElements = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            mSequences.set(i, i);
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return false if the buffer is full
+     */
+    public boolean offer(@NonNull E element) {
+        long position = mTail.get();
+        while (true) {
+            int index = (int) position & mMask;
+            long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mElements.set(index, element);
+                    mSequences.set(index, position + 1);
+                    return true;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                // The consumer hasn't freed this slot yet
+                return false;
+            } else {
+                // Another producer claimed it, try again further ahead
+                position = mTail.get();
+            }
+        }
+    }
+
+    /**
+     * Consumer only.
+     *
+     * @return the oldest element, null if empty
+     */
+    @Nullable
+    public E poll() {
+        int index = (int) mHead & mMask;
+        if (mSequences.get(index) != mHead + 1)
+            return null;
+        E element = mElements.get(index);
+        mElements.lazySet(index, null);
+        mSequences.lazySet(index, mHead + mMask + 1);
+        mHead++;
+        return element;
+    }
+
+    /**
+     * Consumer only. Elements whose producer is still in {@link #offer(Object)} may not be visible yet.
+     */
+    public boolean isEmpty() {
+        return mSequences.get((int) mHead & mMask) != mHead + 1;
+    }
+}
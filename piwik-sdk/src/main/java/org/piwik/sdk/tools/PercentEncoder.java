@@ -0,0 +1,99 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.tools;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Percent-encodes strings as UTF-8, appending straight into a StringBuilder.
+ * <p/>
+ * Produces the same output as {@code URLEncoder.encode(s, "UTF-8").replaceAll("\\+", "%20")}:
+ * {@code a-z A-Z 0-9 . - * _} are kept, spaces become {@code %20}, everything else is encoded with upper case hex digits.
+ * Unpaired surrogates are encoded as {@code ?} ({@code %3F}), like the UTF-8 charset encoder replaces them.
+ */
+public class PercentEncoder {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final boolean[] SAFE = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++)
+            SAFE[c] = true;
+        for (char c = 'A'; c <= 'Z'; c++)
+            SAFE[c] = true;
+        for (char c = '0'; c <= '9'; c++)
+            SAFE[c] = true;
+        SAFE['.'] = true;
+        SAFE['-'] = true;
+        SAFE['*'] = true;
+        SAFE['_'] = true;
+    }
+
+    /**
+     * @return the encoded value, the same instance if nothing had to be encoded
+     */
+    @NonNull
+    public static String encode(@NonNull String value) {
+        int length = value.length();
+        int safePrefix = 0;
+        while (safePrefix < length && isSafe(value.charAt(safePrefix)))
+            safePrefix++;
+        if (safePrefix == length)
+            return value;
+
+        StringBuilder sb = new StringBuilder(length + 16);
+        sb.append(value, 0, safePrefix);
+        appendEncoded(sb, value, safePrefix);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the encoded value to the builder.
+     */
+    public static void append(@NonNull StringBuilder sb, @NonNull String value) {
+        appendEncoded(sb, value, 0);
+    }
+
+    private static boolean isSafe(char c) {
+        return c < 128 && SAFE[c];
+    }
+
+    private static void appendEncoded(StringBuilder sb, String value, int from) {
+        int length = value.length();
+        for (int i = from; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 128) {
+                if (SAFE[c]) {
+                    sb.append(c);
+                } else if (c == ' ') {
+                    sb.append("%20");
+                } else {
+                    appendByte(sb, c);
+                }
+            } else if (c < 0x800) {
+                appendByte(sb, 0xC0 | (c >> 6));
+                appendByte(sb, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                appendByte(sb, 0xF0 | (codePoint >> 18));
+                appendByte(sb, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendByte(sb, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendByte(sb, 0x80 | (codePoint & 0x3F));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                appendByte(sb, '?');
+            } else {
+                appendByte(sb, 0xE0 | (c >> 12));
+                appendByte(sb, 0x80 | ((c >> 6) & 0x3F));
+                appendByte(sb, 0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static void appendByte(StringBuilder sb, int b) {
+        sb.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+}
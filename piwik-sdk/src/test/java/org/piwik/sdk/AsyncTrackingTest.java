@@ -0,0 +1,112 @@
+package org.piwik.sdk;
+
+import org.junit.Test;
+import org.piwik.sdk.dispatcher.DispatcherTest;
+import org.piwik.sdk.testhelper.DefaultTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class AsyncTrackingTest extends DefaultTestCase {
+
+    private Tracker createAsyncTracker() throws Exception {
+        getPiwik().setOptOut(false);
+        Tracker tracker = createTracker();
+        tracker.setDispatchInterval(-1);
+        tracker.setAsyncTracking(true);
+        return tracker;
+    }
+
+    private static List<String> awaitQueries(Tracker tracker, int count) throws Exception {
+        long timeout = System.currentTimeMillis() + 10000;
+        List<String> queries = DispatcherTest.getFlattenedQueries(tracker.getDispatcher().getDryRunOutput());
+        while (queries.size() < count && System.currentTimeMillis() < timeout) {
+            Thread.sleep(20);
+            tracker.dispatch();
+            queries = DispatcherTest.getFlattenedQueries(tracker.getDispatcher().getDryRunOutput());
+        }
+        return queries;
+    }
+
+    @Test
+    public void testDefaults() throws Exception {
+        Tracker tracker = createTracker();
+        assertFalse(tracker.isAsyncTracking());
+        assertEquals(0, tracker.getAsyncDroppedEventCount());
+        tracker.setAsyncTracking(true);
+        assertTrue(tracker.isAsyncTracking());
+    }
+
+    @Test
+    public void testKeepsOrder() throws Exception {
+        Tracker tracker = createAsyncTracker();
+        for (int i = 0; i < 100; i++)
+            TrackHelper.track().event("Category", "Action").value((float) i).with(tracker);
+        tracker.dispatch();
+
+        List<String> queries = awaitQueries(tracker, 100);
+        assertEquals(100, queries.size());
+        for (int i = 0; i < 100; i++)
+            assertTrue(queries.get(i), queries.get(i).contains("e_v=" + (float) i));
+        assertTrue(queries.get(0).contains("new_visit=1"));
+        assertEquals(0, tracker.getAsyncDroppedEventCount());
+    }
+
+    @Test
+    public void testMultipleThreads() throws Exception {
+        final Tracker tracker = createAsyncTracker();
+        final int threadCount = 10;
+        final int eventsPerThread = 50;
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            final int thread = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < eventsPerThread; j++)
+                        TrackHelper.track().event("Thread" + thread, "Action" + j).with(tracker);
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        tracker.dispatch();
+
+        List<String> queries = awaitQueries(tracker, threadCount * eventsPerThread);
+        assertEquals(threadCount * eventsPerThread, queries.size());
+        int sessionStarts = 0;
+        for (String query : queries) {
+            if (query.contains("new_visit=1"))
+                sessionStarts++;
+        }
+        assertEquals(1, sessionStarts);
+
+        // Events of the same thread arrive in the order they were tracked
+        for (int i = 0; i < threadCount; i++) {
+            List<String> actions = new ArrayList<>();
+            for (String query : queries) {
+                if (query.contains("e_c=Thread" + i + "&"))
+                    actions.add(query.replaceAll(".*e_a=(Action\\d+).*", "$1"));
+            }
+            assertEquals(eventsPerThread, actions.size());
+            for (int j = 0; j < eventsPerThread; j++)
+                assertEquals("Action" + j, actions.get(j));
+        }
+    }
+
+    @Test
+    public void testSwitchBackToSync() throws Exception {
+        Tracker tracker = createAsyncTracker();
+        tracker.setAsyncTracking(false);
+        getPiwik().setOptOut(true);
+        TrackHelper.track().screen("/sync").with(tracker);
+        // Tracked on the calling thread
+        assertTrue(tracker.getLastEvent().contains("sync"));
+    }
+}
@@ -0,0 +1,129 @@
+package org.piwik.sdk;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.dispatcher.Priority;
+import org.piwik.sdk.testhelper.DefaultTestCase;
+import org.piwik.sdk.testhelper.FullEnvTestRunner;
+import org.piwik.sdk.tools.CachedDateFormat;
+import org.piwik.sdk.tools.PercentEncoder;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(FullEnvTestRunner.class)
+public class EventAggregatorTest extends DefaultTestCase {
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        Tracker tracker = createTracker();
+        TrackHelper.track().event("Video", "Progress").value(1f).with(tracker);
+        assertNotNull(tracker.getLastEvent());
+    }
+
+    @Test
+    public void testMergesIdenticalEvents() throws Exception {
+        Tracker tracker = createTracker();
+        tracker.getAggregator().setWindow(60 * 1000);
+        TrackHelper.track().event("Video", "Progress").name("intro").value(1f).with(tracker);
+        TrackHelper.track().event("Video", "Progress").name("intro").value(2f).with(tracker);
+        TrackHelper.track().event("Video", "Progress").name("intro").value(3f).with(tracker);
+        assertNull(tracker.getLastEvent());
+
+        tracker.dispatch();
+        String event = tracker.getLastEvent();
+        assertTrue(event.contains("e_v=6.0"));
+        assertTrue(event.contains(EventAggregator.COUNT_PARAM + "=3"));
+
+        // Window is empty again
+        tracker.clearLastEvent();
+        tracker.dispatch();
+        assertNull(tracker.getLastEvent());
+    }
+
+    @Test
+    public void testKeepsDifferentEventsApart() throws Exception {
+        Tracker tracker = createTracker();
+        tracker.getAggregator().setWindow(60 * 1000);
+        TrackHelper.track().event("Video", "Progress").name("intro").with(tracker);
+        TrackHelper.track().event("Video", "Progress").name("outro").with(tracker);
+        tracker.dispatch();
+        String event = tracker.getLastEvent();
+        assertNotNull(event);
+        assertFalse(event.contains(EventAggregator.COUNT_PARAM));
+        assertFalse(event.contains("e_v="));
+    }
+
+    @Test
+    public void testSkipsOtherEvents() throws Exception {
+        Tracker tracker = createTracker();
+        tracker.getAggregator().setWindow(60 * 1000).addCategory("Video");
+        TrackHelper.track().screen("/screen").with(tracker);
+        assertNotNull(tracker.getLastEvent());
+
+        tracker.clearLastEvent();
+        TrackHelper.track().event("Scroll", "Down").with(tracker);
+        assertNotNull(tracker.getLastEvent());
+
+        tracker.clearLastEvent();
+        TrackHelper.track().priority(Priority.CRITICAL).event("Video", "Purchase").with(tracker);
+        assertNotNull(tracker.getLastEvent());
+    }
+
+    @Test
+    public void testWindowEnds() throws Exception {
+        Tracker tracker = createTracker();
+        tracker.getAggregator().setWindow(50);
+        TrackHelper.track().event("Video", "Progress").value(1f).with(tracker);
+        TrackHelper.track().event("Video", "Progress").value(1f).with(tracker);
+        assertNull(tracker.getLastEvent());
+        Thread.sleep(500);
+        assertTrue(tracker.getLastEvent().contains(EventAggregator.COUNT_PARAM + "=2"));
+    }
+
+    @Test
+    public void testWindowEndsAfterEarlyFlush() throws Exception {
+        Tracker tracker = createTracker();
+        tracker.getAggregator().setWindow(200);
+        TrackHelper.track().event("Video", "Progress").value(1f).with(tracker);
+        tracker.dispatch();
+        assertNotNull(tracker.getLastEvent());
+
+        tracker.clearLastEvent();
+        TrackHelper.track().event("Video", "Progress").value(1f).with(tracker);
+        TrackHelper.track().event("Video", "Progress").value(1f).with(tracker);
+        Thread.sleep(1000);
+        assertTrue(tracker.getLastEvent().contains(EventAggregator.COUNT_PARAM + "=2"));
+    }
+
+    @Test
+    public void testKeepsFirstEventUntouched() throws Exception {
+        Tracker tracker = createTracker();
+        tracker.getAggregator().setWindow(60 * 1000);
+        TrackMe trackMe = new TrackMe()
+                .set(QueryParams.EVENT_CATEGORY, "Video")
+                .set(QueryParams.EVENT_ACTION, "Progress")
+                .set(QueryParams.EVENT_VALUE, 1f);
+        String before = CachedDateFormat.now();
+        tracker.track(trackMe);
+        String after = CachedDateFormat.now();
+        tracker.track(new TrackMe(trackMe));
+        assertNull(tracker.getLastEvent());
+
+        Thread.sleep(1100);
+        tracker.dispatch();
+        String event = tracker.getLastEvent();
+        assertTrue(event.contains(EventAggregator.COUNT_PARAM + "=2"));
+        // Taken when the first event was tracked, not when it was flushed
+        assertTrue(event.contains("cdt=" + PercentEncoder.encode(before)) || event.contains("cdt=" + PercentEncoder.encode(after)));
+        assertEquals("1.0", trackMe.get(QueryParams.EVENT_VALUE));
+        assertNull(trackMe.get(QueryParams.DATETIME_OF_REQUEST));
+        assertFalse(trackMe.toMap().containsKey(EventAggregator.COUNT_PARAM));
+    }
+}
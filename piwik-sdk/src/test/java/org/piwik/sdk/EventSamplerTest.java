@@ -0,0 +1,90 @@
+package org.piwik.sdk;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.testhelper.FullEnvTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(FullEnvTestRunner.class)
+public class EventSamplerTest {
+
+    @Test
+    public void testKeepsEverythingByDefault() throws Exception {
+        EventSampler sampler = new EventSampler();
+        assertFalse(sampler.isActive());
+        assertEquals(1f, sampler.getRate("category"), 0f);
+        assertTrue(sampler.keep("0123456789abcdef", "category", 1f));
+        assertEquals(0, sampler.getSampledOutCount());
+    }
+
+    @Test
+    public void testRates() throws Exception {
+        EventSampler sampler = new EventSampler();
+        sampler.setCategoryRate("scroll", 0.1f);
+        assertTrue(sampler.isActive());
+        assertEquals(0.1f, sampler.getRate("scroll"), 0f);
+        assertEquals(1f, sampler.getRate("other"), 0f);
+        assertEquals(1f, sampler.getRate(null), 0f);
+
+        sampler.setDefaultRate(2f);
+        assertEquals(1f, sampler.getDefaultRate(), 0f);
+        sampler.removeCategoryRate("scroll");
+        assertFalse(sampler.isActive());
+        assertEquals(1f, sampler.getRate("scroll"), 0f);
+    }
+
+    @Test
+    public void testStableDecision() throws Exception {
+        EventSampler sampler = new EventSampler();
+        for (int i = 0; i < 100; i++) {
+            String visitorId = Tracker.makeRandomVisitorId();
+            boolean kept = sampler.keep(visitorId, null, 0.5f);
+            for (int j = 0; j < 5; j++)
+                assertEquals(kept, sampler.keep(visitorId, null, 0.5f));
+            // Whoever is in at a low rate is in at a higher one too
+            if (sampler.keep(visitorId, null, 0.2f))
+                assertTrue(kept);
+        }
+    }
+
+    @Test
+    public void testSampledFraction() throws Exception {
+        EventSampler sampler = new EventSampler();
+        int kept = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (sampler.keep(Tracker.makeRandomVisitorId(), null, 0.1f))
+                kept++;
+        }
+        assertTrue(kept > 800 && kept < 1200);
+        assertEquals(10000 - kept, sampler.getSampledOutCount());
+    }
+
+    @Test
+    public void testHashCategory() throws Exception {
+        assertEquals(EventSampler.hash("visitor", null), EventSampler.hash("visitor", null));
+        assertTrue(EventSampler.hash("visitor", "a") != EventSampler.hash("visitor", "b"));
+        assertTrue(EventSampler.hash("ab", "c") != EventSampler.hash("a", "bc"));
+
+        EventSampler sampler = new EventSampler();
+        // Without category hashing a visitor is in or out for all categories
+        for (int i = 0; i < 20; i++) {
+            String visitorId = Tracker.makeRandomVisitorId();
+            assertEquals(sampler.keep(visitorId, "a", 0.5f), sampler.keep(visitorId, "b", 0.5f));
+        }
+        sampler.setHashCategory(true);
+        assertTrue(sampler.isHashCategory());
+        int differing = 0;
+        for (int i = 0; i < 100; i++) {
+            String visitorId = Tracker.makeRandomVisitorId();
+            if (sampler.keep(visitorId, "a", 0.5f) != sampler.keep(visitorId, "b", 0.5f))
+                differing++;
+        }
+        assertTrue(differing > 0);
+    }
+}
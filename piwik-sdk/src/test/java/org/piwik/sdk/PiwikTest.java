@@ -11,6 +11,7 @@ import android.app.Application;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.piwik.sdk.dispatcher.DiskEventStore;
 import org.piwik.sdk.testhelper.FullEnvTestRunner;
 import org.piwik.sdk.testhelper.PiwikTestApplication;
 import org.robolectric.Robolectric;
@@ -22,6 +23,9 @@ import java.util.UUID;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 
@@ -93,4 +97,48 @@ public class PiwikTest {
         Thread.sleep(50);
         assertFalse(tracker.getDispatcher().getDryRunOutput().isEmpty());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSharedDispatch() throws Exception {
+        Piwik piwik = Piwik.getInstance(Robolectric.application);
+        piwik.setSharedDispatch(true);
+        try {
+            Tracker first = piwik.newTracker("http://shared", 1);
+            Tracker second = piwik.newTracker("http://shared", 2);
+            assertSame(first.getDispatcher(), second.getDispatcher());
+            assertNotSame(first.getDispatcher(), piwik.newTracker("http://shared", 3, "token").getDispatcher());
+            assertNotSame(first.getDispatcher(), piwik.newTracker("http://other", 1).getDispatcher());
+
+            piwik.setDryRun(true);
+            first.setDispatchInterval(-1);
+            first.track(TrackHelper.track().screen("first").build());
+            second.track(TrackHelper.track().screen("second").build());
+            first.dispatch();
+            Thread.sleep(100);
+            // Both sites went out in one bulk request
+            assertEquals(1, first.getDispatcher().getDryRunOutput().size());
+            assertEquals(2, first.getDispatcher().getDryRunOutput().get(0).getJSONObject().getJSONArray("requests").length());
+        } finally {
+            piwik.setSharedDispatch(false);
+            piwik.setDryRun(false);
+        }
+        assertNotSame(piwik.newTracker("http://shared", 1).getDispatcher(), piwik.newTracker("http://shared", 2).getDispatcher());
+    }
+
+    @Test
+    public void testOneEventStorePerDirectory() throws Exception {
+        Piwik piwik = Piwik.getInstance(Robolectric.application);
+        piwik.setOfflineCaching(true);
+        try {
+            String url = "http://cached-" + UUID.randomUUID().toString();
+            Tracker first = piwik.newTracker(url, 1);
+            Tracker second = piwik.newTracker(url, 1);
+            assertTrue(first.getDispatcher().getEventStore() instanceof DiskEventStore);
+            // Would replay and overwrite the first tracker's events
+            assertNull(second.getDispatcher().getEventStore());
+            assertTrue(piwik.newTracker(url, 2).getDispatcher().getEventStore() instanceof DiskEventStore);
+        } finally {
+            piwik.setOfflineCaching(false);
+        }
+    }
+}
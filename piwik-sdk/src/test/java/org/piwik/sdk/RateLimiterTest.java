@@ -0,0 +1,99 @@
+package org.piwik.sdk;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.testhelper.DefaultTestCase;
+import org.piwik.sdk.testhelper.FullEnvTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(FullEnvTestRunner.class)
+public class RateLimiterTest extends DefaultTestCase {
+
+    @Test
+    public void testBucket() throws Exception {
+        RateLimiter.Bucket bucket = new RateLimiter.Bucket();
+        assertTrue(bucket.tryAcquire(0));
+        bucket.setLimit(10, 3);
+        long now = TimeUnit.SECONDS.toNanos(100);
+        // The burst
+        for (int i = 0; i < 3; i++)
+            assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now));
+        // One token every 100ms
+        assertFalse(bucket.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(50)));
+        assertTrue(bucket.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(100)));
+        assertFalse(bucket.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(100)));
+        // A long pause refills up to the burst only
+        now += TimeUnit.SECONDS.toNanos(60);
+        for (int i = 0; i < 3; i++)
+            assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now));
+        assertEquals(4, bucket.mThrottled.get());
+    }
+
+    @Test
+    public void testClassify() throws Exception {
+        assertEquals(RateLimiter.EventType.SCREEN, RateLimiter.classify(TrackHelper.track().screen("/path").build()));
+        assertEquals(RateLimiter.EventType.EVENT, RateLimiter.classify(TrackHelper.track().event("category", "action").build()));
+        assertEquals(RateLimiter.EventType.EXCEPTION, RateLimiter.classify(TrackHelper.track().exception(new RuntimeException()).build()));
+        assertEquals(RateLimiter.EventType.ECOMMERCE, RateLimiter.classify(TrackHelper.track().goal(1).build()));
+        assertEquals(RateLimiter.EventType.ECOMMERCE, RateLimiter.classify(TrackHelper.track().order("orderId", 100).build()));
+        assertEquals(RateLimiter.EventType.OTHER, RateLimiter.classify(TrackHelper.track().impression("content").build()));
+    }
+
+    @Test
+    public void testTrackerThrottles() throws Exception {
+        Tracker tracker = createTracker();
+        tracker.getRateLimiter().setLimit(RateLimiter.EventType.EVENT, 0.001, 2);
+        for (int i = 0; i < 5; i++)
+            TrackHelper.track().event("Loop", "action").with(tracker);
+        assertEquals(3, tracker.getRateLimiter().getThrottledCount(RateLimiter.EventType.EVENT));
+        assertEquals(3, tracker.getRateLimiter().getThrottledCount());
+
+        // Other types have their own buckets
+        tracker.clearLastEvent();
+        TrackHelper.track().screen("/screen").with(tracker);
+        assertNotNull(tracker.getLastEvent());
+
+        tracker.getRateLimiter().setLimit(RateLimiter.EventType.EVENT, 0, 0);
+        tracker.clearLastEvent();
+        TrackHelper.track().event("Loop", "action").with(tracker);
+        assertNotNull(tracker.getLastEvent());
+    }
+
+    @Test
+    public void testConcurrentAcquire() throws Exception {
+        final RateLimiter.Bucket bucket = new RateLimiter.Bucket();
+        bucket.setLimit(0.001, 100);
+        final AtomicInteger granted = new AtomicInteger();
+        final int threadCount = 10;
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        if (bucket.tryAcquire(System.nanoTime()))
+                            granted.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        // Exactly the burst, no token handed out twice
+        assertEquals(100, granted.get());
+        assertEquals(threadCount * 100 - 100, bucket.mThrottled.get());
+    }
+}
@@ -0,0 +1,13 @@
+package org.piwik.sdk;
+
+/**
+ * Reaches package-private SDK internals for test helpers in other packages.
+ */
+public final class TestHooks {
+    private TestHooks() {
+    }
+
+    public static void reloadVisitorCounters(Piwik piwik) {
+        piwik.getVisitorCounters().reload();
+    }
+}
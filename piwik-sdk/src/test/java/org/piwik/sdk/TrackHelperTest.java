@@ -8,6 +8,7 @@ import android.util.Pair;
 import org.json.JSONArray;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.piwik.sdk.dispatcher.Priority;
 import org.piwik.sdk.ecommerce.EcommerceItems;
 import org.piwik.sdk.testhelper.DefaultTestCase;
 import org.piwik.sdk.testhelper.FullEnvTestRunner;
@@ -285,6 +286,16 @@ public class TrackHelperTest extends DefaultTestCase {
         assertNull(tracker.getLastEvent());
     }
 
+    @Test
+    public void testPriority() throws Exception {
+        assertEquals(Priority.NORMAL, TrackHelper.track().screen("/path").build().getPriority());
+        assertEquals(Priority.CRITICAL, TrackHelper.track().goal(1).build().getPriority());
+        assertEquals(Priority.CRITICAL, TrackHelper.track().order("orderId", 100).build().getPriority());
+        assertEquals(Priority.BULK, TrackHelper.track().priority(Priority.BULK).event("category", "action").build().getPriority());
+        // Explicit priorities win over the defaults
+        assertEquals(Priority.NORMAL, TrackHelper.track().priority(Priority.NORMAL).goal(1).build().getPriority());
+    }
+
     @Test
     public void testTrackContentImpression() throws Exception {
         Tracker tracker = createTracker();
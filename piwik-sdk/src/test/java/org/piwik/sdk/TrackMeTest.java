@@ -18,6 +18,7 @@ import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -138,6 +139,92 @@ public class TrackMeTest extends DefaultTestCase {
         }
     }
 
+    @Test
+    public void testEncodingWithoutMap() throws Exception {
+        assertEquals("", Dispatcher.urlEncodeUTF8(new TrackMe()));
+
+        TrackMe trackMe = new TrackMe()
+                .set(QueryParams.SITE_ID, 1)
+                .set(QueryParams.URL_PATH, "http://example.com/a b")
+                .set(QueryParams.EVENT_NAME, "\u00e4&=");
+        trackMe.set("dimension1", "foo");
+        assertEquals(Dispatcher.urlEncodeUTF8(trackMe.toMap()), Dispatcher.urlEncodeUTF8(trackMe));
+        assertEquals("?idsite=1&url=http%3A%2F%2Fexample.com%2Fa%20b&e_n=%C3%A4%26%3D&dimension1=foo", Dispatcher.urlEncodeUTF8(trackMe));
+    }
+
+    @Test
+    public void testCustomKeys() throws Exception {
+        TrackMe trackMe = new TrackMe();
+        trackMe.set("dimension1", "foo");
+        trackMe.set("dimension2", "");
+        // Keys of QueryParams end up in the same place, however they were set
+        trackMe.set("idsite", "1");
+        assertEquals("1", trackMe.get(QueryParams.SITE_ID));
+        assertEquals(2, trackMe.toMap().size());
+        assertEquals("foo", trackMe.toMap().get("dimension1"));
+
+        TrackMe copy = new TrackMe(trackMe);
+        trackMe.set("dimension1", null);
+        assertFalse(trackMe.toMap().containsKey("dimension1"));
+        assertEquals("foo", copy.toMap().get("dimension1"));
+    }
+
+    @Test
+    public void testVersion() throws Exception {
+        TrackMe trackMe = new TrackMe();
+        int version = trackMe.getVersion();
+        trackMe.set(QueryParams.HOURS, "1");
+        assertNotEquals(version, trackMe.getVersion());
+
+        // Setting the same value again is no change
+        version = trackMe.getVersion();
+        trackMe.set(QueryParams.HOURS, "1");
+        trackMe.trySet(QueryParams.HOURS, "2");
+        trackMe.set(QueryParams.MINUTES, null);
+        assertEquals(version, trackMe.getVersion());
+
+        trackMe.set(QueryParams.HOURS, null);
+        assertNotEquals(version, trackMe.getVersion());
+    }
+
+    @Test
+    public void testTrySetAll() throws Exception {
+        TrackMe defaults = new TrackMe()
+                .set(QueryParams.HOURS, "1")
+                .set(QueryParams.MINUTES, "2")
+                .set(QueryParams.SECONDS, "3");
+        TrackMe trackMe = new TrackMe().set(QueryParams.HOURS, "10");
+        trackMe.trySetAll(defaults.copyValues(), new QueryParams[]{QueryParams.HOURS, QueryParams.MINUTES, QueryParams.USER_ID});
+        assertEquals("10", trackMe.get(QueryParams.HOURS));
+        assertEquals("2", trackMe.get(QueryParams.MINUTES));
+        assertNull(trackMe.get(QueryParams.SECONDS));
+        assertNull(trackMe.get(QueryParams.USER_ID));
+    }
+
+    @Test
+    public void testEncodedDefaults() throws Exception {
+        TrackMe defaults = new TrackMe()
+                .set(QueryParams.SITE_ID, 1)
+                .set(QueryParams.USER_AGENT, "Mozilla/5.0 (X)");
+        String[] values = defaults.copyValues();
+        String[] encoded = new String[values.length];
+
+        TrackMe trackMe = new TrackMe().set(QueryParams.EVENT_NAME, "a b");
+        trackMe.trySetAll(values, new QueryParams[]{QueryParams.SITE_ID, QueryParams.USER_AGENT});
+        String expected = Dispatcher.urlEncodeUTF8(trackMe.toMap());
+        trackMe.useEncodedDefaults(values, encoded);
+        assertEquals(expected, Dispatcher.urlEncodeUTF8(trackMe));
+        assertEquals("&ua=Mozilla%2F5.0%20%28X%29", encoded[QueryParams.USER_AGENT.ordinal()]);
+        assertNull(encoded[QueryParams.EVENT_NAME.ordinal()]);
+
+        // The encoded form is reused by the next event
+        encoded[QueryParams.SITE_ID.ordinal()] = "&idsite=cached";
+        TrackMe next = new TrackMe().set(QueryParams.USER_AGENT, "Other");
+        next.trySetAll(values, new QueryParams[]{QueryParams.SITE_ID, QueryParams.USER_AGENT});
+        next.useEncodedDefaults(values, encoded);
+        assertEquals("?idsite=cached&ua=Other", Dispatcher.urlEncodeUTF8(next));
+    }
+
     private static Map<String, String> parseEncoding(String url) throws Exception {
         Map<String, String> values = new HashMap<>();
         List<Pair<String, String>> params = UrlHelper.parse(new URI("http://localhost/" + url), "UTF-8");
@@ -30,6 +30,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 
@@ -58,6 +59,49 @@ public class TrackerTest extends DefaultTestCase {
         tracker.track(new TrackMe());
         queryParams = parseEventUrl(tracker.getLastEvent());
         assertEquals("http://some.other/thing", queryParams.get(QueryParams.URL_PATH));
+        assertEquals("http://some.other/thing", tracker.getDefaultTrackMe().get(QueryParams.URL_PATH));
+
+        tracker.track(new TrackMe().set(QueryParams.URL_PATH, "http://some.thing.com/foo/bar"));
+        assertEquals("http://some.thing.com/foo/bar", tracker.getDefaultTrackMe().get(QueryParams.URL_PATH));
+        tracker.track(new TrackMe());
+        queryParams = parseEventUrl(tracker.getLastEvent());
+        assertEquals("http://some.thing.com/foo/bar", queryParams.get(QueryParams.URL_PATH));
+    }
+
+    @Test
+    public void testOptOutSkipsTracking() throws Exception {
+        Tracker tracker = createTracker();
+        getPiwik().setDryRun(false);
+        try {
+            TrackHelper.track().screen("/optout").with(tracker);
+            // Not even encoded
+            assertNull(tracker.getLastEvent());
+            assertEquals(0, tracker.getSessionEpoch());
+        } finally {
+            getPiwik().setDryRun(true);
+        }
+    }
+
+    @Test
+    public void testSampling() throws Exception {
+        Tracker tracker = createTracker();
+        tracker.getSampler().setCategoryRate("sampled", 0f);
+        TrackHelper.track().event("sampled", "action").with(tracker);
+        assertNull(tracker.getLastEvent());
+        assertEquals(1, tracker.getSampler().getSampledOutCount());
+
+        TrackHelper.track().event("other", "action").with(tracker);
+        assertFalse(tracker.getLastEvent().contains(EventSampler.RATE_PARAM));
+
+        tracker.getSampler().setCategoryRate("sampled", 0.5f);
+        boolean kept = EventSampler.toUnitInterval(EventSampler.hash(tracker.getVisitorId(), null)) < 0.5f;
+        tracker.clearLastEvent();
+        TrackHelper.track().event("sampled", "action").with(tracker);
+        if (kept) {
+            assertTrue(tracker.getLastEvent().contains(EventSampler.RATE_PARAM + "=0.5"));
+        } else {
+            assertNull(tracker.getLastEvent());
+        }
     }
 
     @Test
@@ -281,6 +325,91 @@ public class TrackerTest extends DefaultTestCase {
         }
     }
 
+    @Test
+    public void testSessionEpochStress() throws Exception {
+        getPiwik().setOptOut(false);
+        final Tracker tracker = createTracker();
+        tracker.setDispatchInterval(-1);
+        final int threadCount = 8;
+        final int eventsPerThread = 200;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount + 1);
+        for (int i = 0; i < threadCount; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < eventsPerThread; j++)
+                            TrackHelper.track().screen("/stress/" + j).with(tracker);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        // Crosses session boundaries while the others are tracking
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    for (int i = 0; i < 20; i++) {
+                        tracker.startNewSession();
+                        Thread.sleep(2);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                done.countDown();
+            }
+        }).start();
+        start.countDown();
+        done.await();
+        tracker.dispatch();
+
+        List<String> queries = DispatcherTest.getFlattenedQueries(tracker.getDispatcher().getDryRunOutput());
+        long timeout = System.currentTimeMillis() + 10000;
+        while (queries.size() < threadCount * eventsPerThread && System.currentTimeMillis() < timeout) {
+            Thread.sleep(20);
+            queries = DispatcherTest.getFlattenedQueries(tracker.getDispatcher().getDryRunOutput());
+        }
+        assertEquals(threadCount * eventsPerThread, queries.size());
+        // The first event of the first session is queued first
+        assertTrue(queries.get(0).contains("new_visit=1"));
+
+        int sessionStarts = 0;
+        for (String query : queries) {
+            if (query.contains("new_visit=1"))
+                sessionStarts++;
+        }
+        assertTrue(sessionStarts > 1);
+        // Exactly one session start per epoch
+        assertEquals(tracker.getSessionEpoch(), sessionStarts);
+    }
+
+    @Test
+    public void testDefaultChangesAfterTracking() throws Exception {
+        Tracker tracker = createTracker();
+        TrackHelper.track().screen("/first").with(tracker);
+
+        tracker.setUserId("user1");
+        TrackHelper.track().screen("/second").with(tracker);
+        assertTrue(tracker.getLastEvent().contains("uid=user1"));
+
+        tracker.getDefaultTrackMe().set(QueryParams.USER_ID, "user2");
+        TrackHelper.track().screen("/third").with(tracker);
+        assertTrue(tracker.getLastEvent().contains("uid=user2"));
+
+        tracker.setVisitorId("0123456789abcdef");
+        TrackHelper.track().screen("/fourth").with(tracker);
+        assertTrue(tracker.getLastEvent().contains("_id=0123456789abcdef"));
+        // The last url became the default
+        tracker.track(new TrackMe());
+        assertTrue(tracker.getLastEvent().contains("fourth"));
+    }
+
     @Test
     public void testSetSessionTimeout() throws Exception {
         Tracker tracker = createTracker();
@@ -331,6 +460,26 @@ public class TrackerTest extends DefaultTestCase {
         assertTrue(tracker.equals(tracker3));
     }
 
+    @Test
+    public void testScreenViewsReuseDefaults() throws Exception {
+        Tracker tracker = createTracker();
+        tracker.track(TrackHelper.track().screen("/first").build());
+        Tracker.Defaults defaults = tracker.getDefaults();
+        String encodedUserAgent = defaults.mEncoded[QueryParams.USER_AGENT.ordinal()];
+        assertNotNull(encodedUserAgent);
+
+        tracker.track(TrackHelper.track().screen("/second").build());
+        assertTrue(tracker.getLastEvent().contains("second"));
+        // A new url is no reason to rebuild the snapshot or its encoded fragments
+        assertSame(defaults, tracker.getDefaults());
+        assertSame(encodedUserAgent, tracker.getDefaults().mEncoded[QueryParams.USER_AGENT.ordinal()]);
+
+        // A url set on the default TrackMe still wins over the one of the last event
+        tracker.getDefaultTrackMe().set(QueryParams.URL_PATH, "http://some.default/");
+        tracker.track(new TrackMe());
+        assertEquals("http://some.default/", parseEventUrl(tracker.getLastEvent()).get(QueryParams.URL_PATH));
+    }
+
     @Test
     public void testTrackerHashCode() throws Exception {
         Tracker tracker = createTracker();
@@ -408,6 +557,7 @@ public class TrackerTest extends DefaultTestCase {
         TrackHelper.track().event("TestCategory", "TestAction").with(tracker1);
         QueryHashMap<String, String> queryParams1 = parseEventUrl(tracker1.getLastEvent());
         assertEquals(Long.parseLong(queryParams.get(QueryParams.FIRST_VISIT_TIMESTAMP)), Long.parseLong(queryParams1.get(QueryParams.FIRST_VISIT_TIMESTAMP)));
+        piwik.getVisitorCounters().flush();
         assertEquals(piwik.getSharedPreferences().getLong(Tracker.PREF_KEY_TRACKER_FIRSTVISIT, -1), Long.parseLong(queryParams.get(QueryParams.FIRST_VISIT_TIMESTAMP)));
     }
 
@@ -423,11 +573,13 @@ public class TrackerTest extends DefaultTestCase {
         assertEquals(1, Integer.parseInt(queryParams.get(QueryParams.TOTAL_NUMBER_OF_VISITS)));
 
         tracker = createTracker();
+        piwik.getVisitorCounters().flush();
         assertEquals(1, piwik.getSharedPreferences().getInt(Tracker.PREF_KEY_TRACKER_VISITCOUNT, -1));
         assertNull(tracker.getDefaultTrackMe().get(QueryParams.TOTAL_NUMBER_OF_VISITS));
         TrackHelper.track().event("TestCategory", "TestAction").with(tracker);
         queryParams = parseEventUrl(tracker.getLastEvent());
         assertEquals(2, Integer.parseInt(queryParams.get(QueryParams.TOTAL_NUMBER_OF_VISITS)));
+        piwik.getVisitorCounters().flush();
         assertEquals(2, piwik.getSharedPreferences().getInt(Tracker.PREF_KEY_TRACKER_VISITCOUNT, -1));
     }
 
@@ -451,6 +603,7 @@ public class TrackerTest extends DefaultTestCase {
             }).start();
         }
         countDownLatch.await();
+        getPiwik().getVisitorCounters().flush();
         assertEquals(threadCount, getPiwik().getSharedPreferences().getInt(Tracker.PREF_KEY_TRACKER_VISITCOUNT, 0));
     }
 
@@ -519,6 +672,7 @@ public class TrackerTest extends DefaultTestCase {
         Thread.sleep(1000);
 
         // After the first visit we now have a timestamp for the previous visit
+        piwik.getVisitorCounters().flush();
         long previousVisit = piwik.getSharedPreferences().getLong(Tracker.PREF_KEY_TRACKER_PREVIOUSVISIT, -1);
         assertTrue(previousVisit - _startTime < 2000);
         assertNotEquals(-1, previousVisit);
@@ -537,6 +691,7 @@ public class TrackerTest extends DefaultTestCase {
         assertNotEquals(previousVisit, Long.parseLong(queryParams.get(QueryParams.PREVIOUS_VISIT_TIMESTAMP)));
         Thread.sleep(1000);
 
+        piwik.getVisitorCounters().flush();
         previousVisit = piwik.getSharedPreferences().getLong(Tracker.PREF_KEY_TRACKER_PREVIOUSVISIT, -1);
 
         tracker = createTracker();
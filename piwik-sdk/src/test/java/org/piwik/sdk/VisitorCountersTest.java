@@ -0,0 +1,136 @@
+package org.piwik.sdk;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.testhelper.FullEnvTestRunner;
+import org.piwik.sdk.tools.BackgroundExecutor;
+import org.robolectric.Robolectric;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(FullEnvTestRunner.class)
+public class VisitorCountersTest {
+    private SharedPreferences mPreferences;
+    private final BackgroundExecutor mExecutor = new BackgroundExecutor(1, "VisitorCountersTest");
+
+    @Before
+    public void setup() {
+        mPreferences = Robolectric.application.getSharedPreferences("VisitorCountersTest", Context.MODE_PRIVATE);
+        mPreferences.edit().clear().commit();
+    }
+
+    @Test
+    public void testFirstVisit() throws Exception {
+        VisitorCounters counters = new VisitorCounters(mPreferences, mExecutor);
+        VisitorCounters.Visit visit = counters.startVisit(1000);
+        assertEquals(1, visit.getVisitCount());
+        assertEquals(1000, visit.getFirstVisit());
+        assertEquals(-1, visit.getPreviousVisit());
+
+        visit = counters.startVisit(2000);
+        assertEquals(2, visit.getVisitCount());
+        assertEquals(1000, visit.getFirstVisit());
+        assertEquals(1000, visit.getPreviousVisit());
+    }
+
+    @Test
+    public void testPersisted() throws Exception {
+        VisitorCounters counters = new VisitorCounters(mPreferences, mExecutor);
+        counters.startVisit(1000);
+        counters.startVisit(2000);
+        counters.flush();
+        assertEquals(2, mPreferences.getInt(Tracker.PREF_KEY_TRACKER_VISITCOUNT, -1));
+        assertEquals(1000, mPreferences.getLong(Tracker.PREF_KEY_TRACKER_FIRSTVISIT, -1));
+        assertEquals(2000, mPreferences.getLong(Tracker.PREF_KEY_TRACKER_PREVIOUSVISIT, -1));
+
+        // Like after a restart of the app
+        VisitorCounters.Visit visit = new VisitorCounters(mPreferences, mExecutor).startVisit(3000);
+        assertEquals(3, visit.getVisitCount());
+        assertEquals(1000, visit.getFirstVisit());
+        assertEquals(2000, visit.getPreviousVisit());
+    }
+
+    @Test
+    public void testWrittenInBackground() throws Exception {
+        VisitorCounters counters = new VisitorCounters(mPreferences, mExecutor);
+        counters.startVisit(1000);
+        long timeout = System.currentTimeMillis() + 5000;
+        while (mPreferences.getInt(Tracker.PREF_KEY_TRACKER_VISITCOUNT, -1) != 1 && System.currentTimeMillis() < timeout)
+            Thread.sleep(10);
+        assertEquals(1, mPreferences.getInt(Tracker.PREF_KEY_TRACKER_VISITCOUNT, -1));
+    }
+
+    @Test
+    public void testWritesWhenExecutorRejects() throws Exception {
+        VisitorCounters counters = new VisitorCounters(mPreferences, new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        });
+        counters.startVisit(1000);
+        assertEquals(1, mPreferences.getInt(Tracker.PREF_KEY_TRACKER_VISITCOUNT, -1));
+        // Later changes are still saved
+        counters.startVisit(2000);
+        assertEquals(2, mPreferences.getInt(Tracker.PREF_KEY_TRACKER_VISITCOUNT, -1));
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        VisitorCounters counters = new VisitorCounters(mPreferences, mExecutor);
+        counters.startVisit(1000);
+        counters.flush();
+        mPreferences.edit().clear().commit();
+        counters.reload();
+        // A write that was still scheduled must not resurrect the old values
+        counters.flush();
+        assertFalse(mPreferences.contains(Tracker.PREF_KEY_TRACKER_VISITCOUNT));
+        assertFalse(mPreferences.contains(Tracker.PREF_KEY_TRACKER_FIRSTVISIT));
+        assertFalse(mPreferences.contains(Tracker.PREF_KEY_TRACKER_PREVIOUSVISIT));
+        assertEquals(1, counters.startVisit(2000).getVisitCount());
+    }
+
+    @Test
+    public void testMultipleThreads() throws Exception {
+        final VisitorCounters counters = new VisitorCounters(mPreferences, mExecutor);
+        final int threadCount = 50;
+        final int visitsPerThread = 100;
+        final List<Integer> visitCounts = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < visitsPerThread; j++)
+                        visitCounts.add(counters.startVisit(1000 + j).getVisitCount());
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        counters.flush();
+
+        // Every visit got its own number
+        Collections.sort(visitCounts);
+        for (int i = 0; i < visitCounts.size(); i++)
+            assertEquals(i + 1, (int) visitCounts.get(i));
+        assertEquals(threadCount * visitsPerThread, mPreferences.getInt(Tracker.PREF_KEY_TRACKER_VISITCOUNT, -1));
+        assertEquals(1000, mPreferences.getLong(Tracker.PREF_KEY_TRACKER_FIRSTVISIT, -1));
+    }
+}
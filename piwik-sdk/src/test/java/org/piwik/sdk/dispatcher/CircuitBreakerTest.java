@@ -0,0 +1,89 @@
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class CircuitBreakerTest {
+    private static final DispatchResult FAILURE = DispatchResult.forException(new SocketTimeoutException());
+    private static final DispatchResult SUCCESS = DispatchResult.forStatus(HttpURLConnection.HTTP_OK);
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker();
+        assertFalse(breaker.isEnabled());
+        for (int i = 0; i < 100; i++)
+            breaker.onResult(FAILURE);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testStates() throws Exception {
+        final List<String> transitions = new ArrayList<>();
+        CircuitBreaker breaker = new CircuitBreaker().setEnabled(true).setFailureThreshold(3).setOpenDuration(50);
+        breaker.setListener(new CircuitBreaker.Listener() {
+            @Override
+            public void onStateChanged(@NonNull CircuitBreaker.State from, @NonNull CircuitBreaker.State to) {
+                transitions.add(from + "->" + to);
+            }
+        });
+
+        breaker.onResult(FAILURE);
+        breaker.onResult(FAILURE);
+        // A success in between starts counting anew
+        breaker.onResult(SUCCESS);
+        breaker.onResult(FAILURE);
+        breaker.onResult(FAILURE);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onResult(FAILURE);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertTrue(breaker.getRemainingOpenTime() > 0);
+
+        Thread.sleep(100);
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // A failed probe opens it again right away
+        breaker.onResult(FAILURE);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(100);
+        assertTrue(breaker.allowRequest());
+        breaker.onResult(SUCCESS);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getRemainingOpenTime());
+
+        assertEquals(5, transitions.size());
+        assertEquals("CLOSED->OPEN", transitions.get(0));
+        assertEquals("OPEN->HALF_OPEN", transitions.get(1));
+        assertEquals("HALF_OPEN->OPEN", transitions.get(2));
+        assertEquals("HALF_OPEN->CLOSED", transitions.get(4));
+    }
+
+    @Test
+    public void testPermanentFailuresDontOpen() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker().setEnabled(true).setFailureThreshold(1);
+        breaker.onResult(DispatchResult.forStatus(HttpURLConnection.HTTP_BAD_REQUEST));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onResult(DispatchResult.forStatus(HttpURLConnection.HTTP_UNAVAILABLE));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        breaker.setEnabled(false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
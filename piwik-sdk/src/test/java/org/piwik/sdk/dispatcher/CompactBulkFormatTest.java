@@ -0,0 +1,89 @@
+package org.piwik.sdk.dispatcher;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class CompactBulkFormatTest {
+
+    private static List<String> sorted(String query) {
+        List<String> pairs = new ArrayList<>(Arrays.asList(query.substring(1).split("&")));
+        Collections.sort(pairs);
+        return pairs;
+    }
+
+    @Test
+    public void testSharedParameters() throws Exception {
+        List<String> queries = Arrays.asList(
+                "?idsite=1&action_name=Main&_id=abc&ua=Mozilla%2F5.0",
+                "?idsite=1&action_name=Help&_id=abc&ua=Mozilla%2F5.0",
+                "?idsite=1&e_c=cat&_id=abc&ua=Mozilla%2F5.0");
+        JSONObject body = CompactBulkFormat.compact(queries);
+        assertEquals("idsite=1&_id=abc&ua=Mozilla%2F5.0", body.getString(CompactBulkFormat.SHARED));
+        JSONArray requests = body.getJSONArray(CompactBulkFormat.REQUESTS);
+        assertEquals("action_name=Main", requests.getString(0));
+        assertEquals("action_name=Help", requests.getString(1));
+        assertEquals("e_c=cat", requests.getString(2));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        List<String> queries = Arrays.asList(
+                "?idsite=1&a=1&a=1&b=2",
+                "?idsite=1&a=1&c=3",
+                "?idsite=1",
+                "?a=1&idsite=1&d=");
+        JSONObject body = CompactBulkFormat.compact(queries);
+        body.put("token_auth", "token");
+        JSONObject expanded = CompactBulkFormat.expand(body);
+
+        assertFalse(expanded.has(CompactBulkFormat.SHARED));
+        assertEquals("token", expanded.getString("token_auth"));
+        JSONArray requests = expanded.getJSONArray(CompactBulkFormat.REQUESTS);
+        assertEquals(queries.size(), requests.length());
+        for (int i = 0; i < queries.size(); i++)
+            assertEquals(sorted(queries.get(i)), sorted(requests.getString(i)));
+        assertEquals("?idsite=1", requests.getString(2));
+    }
+
+    @Test
+    public void testNothingShared() throws Exception {
+        JSONObject body = CompactBulkFormat.compact(Arrays.asList("?one=1", "?two=2"));
+        assertEquals("", body.getString(CompactBulkFormat.SHARED));
+        JSONArray requests = CompactBulkFormat.expand(body).getJSONArray(CompactBulkFormat.REQUESTS);
+        assertEquals("?one=1", requests.getString(0));
+        assertEquals("?two=2", requests.getString(1));
+    }
+
+    @Test
+    public void testSmallerThanBulk() throws Exception {
+        List<String> queries = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            queries.add("?idsite=1&rec=1&apiv=1&_id=0123456789abcdef&res=1080x1920&ua=Dalvik%2F2.1.0%20%28Linux%3B%20Android%207.0%29&lang=en&action_name=Screen" + i);
+        TrackerBulkURLWrapper wrapper = new TrackerBulkURLWrapper(new URL("http://example.com/piwik-proxy.php"), queries, "token");
+        TrackerBulkURLWrapper.Page page = wrapper.iterator().next();
+        JSONObject bulk = wrapper.getEvents(page);
+        wrapper.setCompact(true);
+        JSONObject compact = wrapper.getEvents(page);
+        assertEquals("token", compact.getString("token_auth"));
+        assertTrue(compact.toString().length() * 4 < bulk.toString().length());
+        assertEquals(bulk.getJSONArray("requests").getString(7),
+                "?" + compact.getString(CompactBulkFormat.SHARED) + "&" + compact.getJSONArray(CompactBulkFormat.REQUESTS).getString(7));
+    }
+}
@@ -0,0 +1,145 @@
+package org.piwik.sdk.dispatcher;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class DiskEventStoreTest {
+    private File mDirectory;
+
+    @Before
+    public void setup() throws Exception {
+        mDirectory = File.createTempFile("piwik", "store");
+        assertTrue(mDirectory.delete());
+    }
+
+    private List<Event> persist(DiskEventStore store, int count) {
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Event event = new Event("?event=" + i);
+            store.persist(event);
+            events.add(event);
+        }
+        store.flush();
+        return events;
+    }
+
+    @Test
+    public void testReplayUnacknowledged() throws Exception {
+        DiskEventStore store = new DiskEventStore(mDirectory);
+        assertTrue(store.replay().isEmpty());
+        List<Event> events = persist(store, 5);
+        store.acknowledge(events.subList(0, 2));
+        store.flush();
+
+        List<Event> replayed = new DiskEventStore(mDirectory).replay();
+        assertEquals(3, replayed.size());
+        assertEquals("?event=2", replayed.get(0).getQuery());
+        assertEquals("?event=4", replayed.get(2).getQuery());
+    }
+
+    @Test
+    public void testKeepsPriority() throws Exception {
+        DiskEventStore store = new DiskEventStore(mDirectory);
+        store.persist(new Event("?goal=1", Priority.CRITICAL));
+        store.persist(new Event("?bulk=1", Priority.BULK));
+        store.persist(new Event("?normal=1"));
+        store.flush();
+
+        List<Event> replayed = new DiskEventStore(mDirectory).replay();
+        assertEquals(3, replayed.size());
+        assertEquals("?goal=1", replayed.get(0).getQuery());
+        assertEquals(Priority.CRITICAL, replayed.get(0).getPriority());
+        assertEquals(Priority.BULK, replayed.get(1).getPriority());
+        assertEquals(Priority.NORMAL, replayed.get(2).getPriority());
+
+        // Spilled events are read back with their priority too
+        List<Event> read = store.read(0, 3, 10, -1);
+        assertEquals(Priority.CRITICAL, read.get(0).getPriority());
+        assertEquals("?goal=1", read.get(0).getQuery());
+    }
+
+    @Test
+    public void testReadsRecordsWithoutPriority() throws Exception {
+        assertTrue(mDirectory.mkdirs());
+        FileOutputStream out = new FileOutputStream(new File(mDirectory, "0.log"));
+        out.write("?old=1\n".getBytes("UTF-8"));
+        out.close();
+
+        List<Event> replayed = new DiskEventStore(mDirectory).replay();
+        assertEquals(1, replayed.size());
+        assertEquals("?old=1", replayed.get(0).getQuery());
+        assertEquals(Priority.NORMAL, replayed.get(0).getPriority());
+    }
+
+    @Test
+    public void testCursorOnlyCoversLeadingEvents() throws Exception {
+        DiskEventStore store = new DiskEventStore(mDirectory);
+        List<Event> events = persist(store, 3);
+        store.acknowledge(events.subList(1, 3));
+        store.flush();
+
+        // The first event is still missing, so nothing may be skipped
+        assertEquals(3, new DiskEventStore(mDirectory).replay().size());
+    }
+
+    @Test
+    public void testReplayedEventsCanBeAcknowledged() throws Exception {
+        persist(new DiskEventStore(mDirectory), 4);
+
+        DiskEventStore second = new DiskEventStore(mDirectory);
+        List<Event> replayed = second.replay();
+        assertEquals(4, replayed.size());
+        second.acknowledge(replayed);
+        second.flush();
+
+        assertTrue(new DiskEventStore(mDirectory).replay().isEmpty());
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    @Test
+    public void testNewProcessStartsNewSegment() throws Exception {
+        persist(new DiskEventStore(mDirectory), 1);
+        DiskEventStore second = new DiskEventStore(mDirectory);
+        List<Event> events = persist(second, 1);
+        assertEquals(DiskEventStore.RECORDS_PER_SEGMENT, events.get(0).getStoreId());
+    }
+
+    @Test
+    public void testFullSegmentIsDeleted() throws Exception {
+        DiskEventStore store = new DiskEventStore(mDirectory);
+        List<Event> events = persist(store, DiskEventStore.RECORDS_PER_SEGMENT + 1);
+        store.acknowledge(events.subList(0, DiskEventStore.RECORDS_PER_SEGMENT));
+        store.flush();
+
+        assertFalse(new File(mDirectory, "0.log").exists());
+        List<Event> replayed = new DiskEventStore(mDirectory).replay();
+        assertEquals(1, replayed.size());
+    }
+
+    @Test
+    public void testTornLineIsIgnored() throws Exception {
+        persist(new DiskEventStore(mDirectory), 2);
+        FileOutputStream out = new FileOutputStream(new File(mDirectory, "0.log"), true);
+        out.write("?event=to".getBytes("UTF-8"));
+        out.close();
+
+        List<Event> replayed = new DiskEventStore(mDirectory).replay();
+        assertEquals(2, replayed.size());
+        assertEquals("?event=1", replayed.get(1).getQuery());
+    }
+}
@@ -0,0 +1,207 @@
+package org.piwik.sdk.dispatcher;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.Piwik;
+import org.piwik.sdk.Tracker;
+import org.piwik.sdk.testhelper.FullEnvTestRunner;
+import org.piwik.sdk.testhelper.PiwikTestApplication;
+import org.robolectric.Robolectric;
+import org.robolectric.annotation.Config;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(FullEnvTestRunner.class)
+public class DispatchSchedulerTest {
+
+    private Tracker createTracker() throws Exception {
+        PiwikTestApplication app = (PiwikTestApplication) Robolectric.application;
+        return Piwik.getInstance(Robolectric.application).newTracker(app.getTrackerUrl(), app.getSiteId());
+    }
+
+    @Before
+    public void setup() {
+        Piwik.getInstance(Robolectric.application).setDryRun(true);
+        Piwik.getInstance(Robolectric.application).setOptOut(false);
+    }
+
+    @Test
+    public void testInterval() throws Exception {
+        DispatchScheduler scheduler = new DispatchScheduler(Robolectric.application);
+        scheduler.setMeteredMultiplier(4).setPromptInterval(1000);
+
+        scheduler.update(true, false, false);
+        assertEquals(5000, scheduler.getInterval(5000));
+        assertEquals(-1, scheduler.getInterval(-1));
+
+        scheduler.update(true, true, false);
+        assertEquals(20000, scheduler.getInterval(5000));
+        scheduler.update(true, true, true);
+        assertEquals(5000, scheduler.getInterval(5000));
+
+        scheduler.update(true, false, true);
+        assertEquals(1000, scheduler.getInterval(5000));
+        assertEquals(500, scheduler.getInterval(500));
+
+        assertTrue(scheduler.isDispatchAllowed());
+        scheduler.update(false, false, true);
+        assertFalse(scheduler.isDispatchAllowed());
+    }
+
+    @Test
+    public void testListener() throws Exception {
+        DispatchScheduler scheduler = new DispatchScheduler(Robolectric.application);
+        final AtomicInteger calls = new AtomicInteger();
+        // The scheduler only holds it weakly
+        DispatchScheduler.Listener listener = new DispatchScheduler.Listener() {
+            @Override
+            public void onConditionsImproved() {
+                calls.incrementAndGet();
+            }
+        };
+        scheduler.start(listener);
+        scheduler.update(false, true, false);
+        int before = calls.get();
+
+        scheduler.update(false, false, true);
+        assertEquals(before, calls.get()); // Still offline
+        scheduler.update(true, false, true);
+        assertEquals(before + 1, calls.get());
+        scheduler.update(true, true, false);
+        assertEquals(before + 1, calls.get());
+        scheduler.update(true, false, false);
+        assertEquals(before + 2, calls.get());
+
+        scheduler.stop();
+        scheduler.update(false, false, false);
+        scheduler.update(true, false, false);
+        assertEquals(before + 2, calls.get());
+        assertNotNull(listener);
+    }
+
+    @Test
+    public void testUnregistersWithoutListener() throws Exception {
+        DispatchScheduler scheduler = new DispatchScheduler(Robolectric.application);
+        scheduler.start(new DispatchScheduler.Listener() {
+            @Override
+            public void onConditionsImproved() {
+            }
+        });
+        assertTrue(scheduler.isRegistered());
+
+        long timeout = System.currentTimeMillis() + 5000;
+        while (scheduler.isRegistered() && System.currentTimeMillis() < timeout) {
+            System.gc();
+            scheduler.update(false, false, false);
+            Thread.sleep(10);
+        }
+        assertFalse(scheduler.isRegistered());
+    }
+
+    @Test
+    public void testImprovementDoesntForceDispatch() throws Exception {
+        DispatchScheduler scheduler = new DispatchScheduler(Robolectric.application);
+        scheduler.setMeteredMultiplier(10).setPromptInterval(200);
+        Dispatcher dispatcher = new Dispatcher(Piwik.getInstance(Robolectric.application), new URL("http://example.com/piwik.php"), null);
+        dispatcher.setScheduler(scheduler);
+        scheduler.update(true, true, false);
+        dispatcher.setDispatchInterval(60 * 1000);
+        dispatcher.submit("?e=normal", Priority.NORMAL);
+        dispatcher.submit("?e=bulk", Priority.BULK);
+        Thread.sleep(200);
+        assertEquals(0, dispatcher.getDryRunOutput().size());
+
+        // Unmetered and charging, the pending cycle moves to the prompt interval
+        scheduler.update(true, false, true);
+        Thread.sleep(50);
+        assertEquals(0, dispatcher.getDryRunOutput().size());
+        long timeout = System.currentTimeMillis() + 5000;
+        while (dispatcher.getDryRunOutput().isEmpty() && System.currentTimeMillis() < timeout)
+            Thread.sleep(10);
+        Thread.sleep(100);
+        // Bulk events still wait until they are due
+        List<String> queries = DispatcherTest.getFlattenedQueries(dispatcher.getDryRunOutput());
+        assertEquals(1, queries.size());
+        assertTrue(queries.get(0).endsWith("?e=normal"));
+        dispatcher.setScheduler(null);
+    }
+
+    @Test
+    public void testDeferWhileOffline() throws Exception {
+        Tracker tracker = createTracker();
+        tracker.setDispatchInterval(-1);
+        tracker.setNetworkAwareDispatch(true);
+        Dispatcher dispatcher = tracker.getDispatcher();
+        DispatchScheduler scheduler = dispatcher.getScheduler();
+        assertNotNull(scheduler);
+
+        scheduler.update(false, false, false);
+        dispatcher.submit("?a=1");
+        dispatcher.forceDispatch();
+        Thread.sleep(500);
+        assertEquals(0, dispatcher.getDryRunOutput().size());
+
+        scheduler.update(true, false, false);
+        long timeout = System.currentTimeMillis() + 5000;
+        while (dispatcher.getDryRunOutput().isEmpty() && System.currentTimeMillis() < timeout)
+            Thread.sleep(10);
+        assertEquals(1, dispatcher.getDryRunOutput().size());
+
+        tracker.setNetworkAwareDispatch(false);
+        assertNull(dispatcher.getScheduler());
+    }
+
+    @Test
+    public void testNoPollingWhileOffline() throws Exception {
+        final AtomicInteger checks = new AtomicInteger();
+        DispatchScheduler scheduler = new DispatchScheduler(Robolectric.application) {
+            @Override
+            public boolean isDispatchAllowed() {
+                checks.incrementAndGet();
+                return super.isDispatchAllowed();
+            }
+        };
+        Dispatcher dispatcher = new Dispatcher(Piwik.getInstance(Robolectric.application), new URL("http://example.com/piwik.php"), null);
+        dispatcher.setScheduler(scheduler);
+        scheduler.update(false, false, false);
+        dispatcher.setDispatchInterval(0);
+        dispatcher.submit("?a=1");
+        Thread.sleep(500);
+        // Deferred once instead of running cycles back to back
+        assertTrue(checks.get() < 10);
+        assertEquals(0, dispatcher.getDryRunOutput().size());
+
+        scheduler.update(true, false, false);
+        long timeout = System.currentTimeMillis() + 5000;
+        while (dispatcher.getDryRunOutput().isEmpty() && System.currentTimeMillis() < timeout)
+            Thread.sleep(10);
+        assertEquals(1, dispatcher.getDryRunOutput().size());
+        dispatcher.setScheduler(null);
+    }
+
+    @Test
+    public void testNoAutomaticDispatchInManualMode() throws Exception {
+        Tracker tracker = createTracker();
+        tracker.setDispatchInterval(-1);
+        tracker.setNetworkAwareDispatch(true);
+        Dispatcher dispatcher = tracker.getDispatcher();
+        DispatchScheduler scheduler = dispatcher.getScheduler();
+
+        scheduler.update(false, false, false);
+        dispatcher.submit("?a=1");
+        scheduler.update(true, false, false);
+        Thread.sleep(500);
+        assertEquals(0, dispatcher.getDryRunOutput().size());
+    }
+}
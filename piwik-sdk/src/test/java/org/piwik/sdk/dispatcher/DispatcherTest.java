@@ -18,10 +18,14 @@ import org.piwik.sdk.QueryParams;
 import org.piwik.sdk.TrackMe;
 import org.piwik.sdk.Tracker;
 import org.piwik.sdk.testhelper.FullEnvTestRunner;
+import org.piwik.sdk.testhelper.MockServer;
 import org.piwik.sdk.testhelper.PiwikTestApplication;
+import org.piwik.sdk.tools.BackgroundExecutor;
 import org.robolectric.Robolectric;
 import org.robolectric.annotation.Config;
 
+import java.io.File;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -29,6 +33,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -75,6 +81,17 @@ public class DispatcherTest {
         assertEquals(Dispatcher.DEFAULT_DISPATCH_INTERVAL, dispatcher.getDispatchInterval());
     }
 
+    @Test
+    public void testCompressionDefaults() throws Exception {
+        Dispatcher dispatcher = createTracker().getDispatcher();
+        assertFalse(dispatcher.isCompression());
+        assertEquals(Dispatcher.DEFAULT_COMPRESSION_THRESHOLD, dispatcher.getCompressionThreshold());
+        dispatcher.setCompression(true);
+        dispatcher.setCompressionThreshold(0);
+        assertTrue(dispatcher.isCompression());
+        assertEquals(0, dispatcher.getCompressionThreshold());
+    }
+
     @Test
     public void testForceDispatchTwice() throws Exception {
         Dispatcher dispatcher = createTracker().getDispatcher();
@@ -86,6 +103,27 @@ public class DispatcherTest {
         assertFalse(dispatcher.forceDispatch());
     }
 
+    @Test
+    public void testCriticalLinger() throws Exception {
+        Dispatcher dispatcher = createTracker().getDispatcher();
+        dispatcher.setCriticalLinger(50);
+        dispatcher.submit("?e=normal", Priority.NORMAL);
+        dispatcher.submit("?e=bulk", Priority.BULK);
+        Thread.sleep(100);
+        assertTrue(dispatcher.getDryRunOutput().isEmpty());
+
+        dispatcher.submit("?e=critical", Priority.CRITICAL);
+        Thread.sleep(500);
+        // Only the critical event skipped the interval
+        List<String> queries = getFlattenedQueries(dispatcher.getDryRunOutput());
+        assertEquals(1, queries.size());
+        assertTrue(queries.get(0).endsWith("?e=critical"));
+
+        dispatcher.forceDispatch();
+        Thread.sleep(500);
+        assertEquals(3, getFlattenedQueries(dispatcher.getDryRunOutput()).size());
+    }
+
     @Test
     public void testDoPostFailed() throws Exception {
         Dispatcher dispatcher = createTracker().getDispatcher();
@@ -106,6 +144,32 @@ public class DispatcherTest {
         assertEquals(Dispatcher.urlEncodeUTF8((String) null), "");
     }
 
+    @Test
+    public void testEventStoreReplay() throws Exception {
+        File directory = File.createTempFile("piwik", "store");
+        assertTrue(directory.delete());
+
+        Dispatcher dispatcher = createTracker().getDispatcher();
+        dispatcher.setDispatchInterval(-1);
+        DiskEventStore store = new DiskEventStore(directory);
+        dispatcher.setEventStore(store);
+        dispatcher.submit("?one=1");
+        dispatcher.submit("?two=2");
+        store.flush();
+
+        // The first dispatcher never dispatched, a new one picks up its events
+        Dispatcher replayer = createTracker().getDispatcher();
+        replayer.setDispatchInterval(-1);
+        DiskEventStore replayStore = new DiskEventStore(directory);
+        replayer.setEventStore(replayStore);
+        assertTrue(replayer.forceDispatch());
+        Thread.sleep(500);
+        assertEquals(2, getFlattenedQueries(replayer.getDryRunOutput()).size());
+
+        replayStore.flush();
+        assertTrue(new DiskEventStore(directory).replay().isEmpty());
+    }
+
     @Test
     public void testSessionStartRaceCondition() throws Exception {
         for (int i = 0; i < 10; i++) {
@@ -164,6 +228,237 @@ public class DispatcherTest {
         checkForMIAs(threadCount * queryCount, createdEvents, tracker.getDispatcher().getDryRunOutput());
     }
 
+    @Test
+    public void testConcurrentForceDispatch() throws Exception {
+        final Tracker tracker = createTracker();
+        tracker.setDispatchInterval(-1);
+        tracker.getDispatcher().setMaxPagesInFlight(4);
+
+        final int threadCount = 10;
+        final int queryCount = 10;
+        final List<String> createdEvents = Collections.synchronizedList(new ArrayList<String>());
+        launchTestThreads(tracker, threadCount, queryCount, createdEvents);
+        Thread.sleep(500);
+        assertEquals(threadCount * queryCount, createdEvents.size());
+        assertTrue(tracker.dispatch());
+
+        checkForMIAs(threadCount * queryCount, createdEvents, tracker.getDispatcher().getDryRunOutput());
+    }
+
+    @Test
+    public void testRetryAgainstMockServer() throws Exception {
+        MockServer server = new MockServer();
+        try {
+            getPiwik().setDryRun(false);
+            Dispatcher dispatcher = new Dispatcher(getPiwik(), server.getUrl(), null);
+            dispatcher.getRetryPolicy().setBaseDelay(10).setMaxDelay(10);
+            server.enqueue(new MockServer.Response(HttpURLConnection.HTTP_UNAVAILABLE));
+            server.enqueue(new MockServer.Response(HttpURLConnection.HTTP_NOT_FOUND));
+            // Before submitting, otherwise the loop may already sleep the default interval
+            dispatcher.setDispatchInterval(0);
+            dispatcher.submit("?idsite=1&rec=1");
+            dispatcher.submit("?idsite=1&rec=2");
+
+            for (int i = 0; i < 50 && dispatcher.getDroppedEventCount() < 2; i++)
+                Thread.sleep(100);
+            List<MockServer.Request> requests = server.getRequests();
+            assertEquals(2, requests.size());
+            assertEquals(requests.get(0).body, requests.get(1).body);
+            // The 404 is permanent, the events are given up
+            assertEquals(2, dispatcher.getDroppedEventCount());
+        } finally {
+            getPiwik().setDryRun(true);
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testForcedDispatchWaitsForBackoff() throws Exception {
+        final List<Integer> attempts = Collections.synchronizedList(new ArrayList<Integer>());
+        try {
+            getPiwik().setDryRun(false);
+            Dispatcher dispatcher = new Dispatcher(getPiwik(), new URL("http://example.com/piwik.php"), null);
+            dispatcher.setTransport(new Transport() {
+                @Override
+                public DispatchResult send(Packet packet) {
+                    attempts.add(1);
+                    return new DispatchResult(HttpURLConnection.HTTP_UNAVAILABLE, 300, null);
+                }
+            });
+            // Only the Retry-After counts, no randomness
+            dispatcher.getRetryPolicy().setBaseDelay(1).setMaxDelay(1);
+            dispatcher.setDispatchInterval(60 * 1000);
+            dispatcher.submit("?idsite=1&rec=1");
+            dispatcher.forceDispatch();
+            Thread.sleep(100);
+            assertEquals(1, attempts.size());
+
+            dispatcher.forceDispatch();
+            Thread.sleep(100);
+            assertEquals(1, attempts.size());
+            Thread.sleep(400);
+            assertEquals(2, attempts.size());
+        } finally {
+            getPiwik().setDryRun(true);
+        }
+    }
+
+    @Test
+    public void testSplitsTooLargePages() throws Exception {
+        final List<Integer> pageSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        try {
+            getPiwik().setDryRun(false);
+            Dispatcher dispatcher = new Dispatcher(getPiwik(), new URL("http://example.com/piwik.php"), null);
+            dispatcher.setTransport(new Transport() {
+                @Override
+                public DispatchResult send(Packet packet) {
+                    JSONObject body = packet.getJSONObject();
+                    int size = body != null ? body.optJSONArray("requests").length() : 1;
+                    pageSizes.add(size);
+                    return DispatchResult.forStatus(size > 2 ? HttpURLConnection.HTTP_ENTITY_TOO_LARGE : HttpURLConnection.HTTP_OK);
+                }
+            });
+            assertFalse(dispatcher.getPageSizer().isAdaptive());
+            dispatcher.setDispatchInterval(60 * 1000);
+            for (int i = 0; i < 5; i++)
+                dispatcher.submit("?idsite=1&rec=1&action_name=" + i);
+            dispatcher.forceDispatch();
+            Thread.sleep(200);
+            // Split right away, without waiting for the interval
+            assertEquals(2, dispatcher.getPageSizer().getPageSize());
+            assertEquals(4, pageSizes.size());
+            assertEquals(5, (int) pageSizes.get(0));
+            assertEquals(2, (int) pageSizes.get(1));
+            assertEquals(2, (int) pageSizes.get(2));
+            assertEquals(1, (int) pageSizes.get(3));
+        } finally {
+            getPiwik().setDryRun(true);
+        }
+    }
+
+    @Test
+    public void testBacksOffIfPageCantBeSplit() throws Exception {
+        final List<Integer> pageSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        try {
+            getPiwik().setDryRun(false);
+            Dispatcher dispatcher = new Dispatcher(getPiwik(), new URL("http://example.com/piwik.php"), null);
+            dispatcher.setTransport(new Transport() {
+                @Override
+                public DispatchResult send(Packet packet) {
+                    pageSizes.add(1);
+                    // Retry-After keeps the randomized backoff out of the test
+                    return new DispatchResult(HttpURLConnection.HTTP_ENTITY_TOO_LARGE, 60 * 1000, null);
+                }
+            });
+            dispatcher.setDispatchInterval(0);
+            dispatcher.submit("?idsite=1&rec=1&action_name=huge");
+            Thread.sleep(200);
+            // Not resent at once and forever, but after the retry backoff
+            assertEquals(1, pageSizes.size());
+            assertEquals(0, dispatcher.getDroppedEventCount());
+        } finally {
+            getPiwik().setDryRun(true);
+        }
+    }
+
+    @Test
+    public void testHangingServerDoesntBlockBackgroundWork() throws Exception {
+        final CountDownLatch serverHangs = new CountDownLatch(1);
+        try {
+            getPiwik().setDryRun(false);
+            for (int i = 0; i < BackgroundExecutor.DEFAULT_THREADS + 1; i++) {
+                Dispatcher dispatcher = new Dispatcher(getPiwik(), new URL("http://example.com/" + i + "/piwik.php"), null);
+                dispatcher.setTransport(new Transport() {
+                    @Override
+                    public DispatchResult send(Packet packet) {
+                        try {
+                            serverHangs.await();
+                        } catch (InterruptedException ignored) {
+                        }
+                        return DispatchResult.forStatus(HttpURLConnection.HTTP_OK);
+                    }
+                });
+                dispatcher.setMaxPagesInFlight(4);
+                dispatcher.setDispatchInterval(-1);
+                dispatcher.submit("?idsite=1&rec=1&_id=" + i);
+                dispatcher.forceDispatch();
+            }
+            Thread.sleep(100);
+
+            // Async tracking and disk writes still get a thread
+            final CountDownLatch ran = new CountDownLatch(1);
+            getPiwik().getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    ran.countDown();
+                }
+            });
+            assertTrue(ran.await(1, TimeUnit.SECONDS));
+        } finally {
+            serverHangs.countDown();
+            getPiwik().setDryRun(true);
+        }
+    }
+
+    @Test
+    public void testCircuitBreakerProbes() throws Exception {
+        final List<Integer> pageSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final boolean[] serverUp = {false};
+        try {
+            getPiwik().setDryRun(false);
+            final Dispatcher dispatcher = new Dispatcher(getPiwik(), new URL("http://example.com/piwik.php"), null);
+            dispatcher.setTransport(new Transport() {
+                @Override
+                public DispatchResult send(Packet packet) {
+                    JSONObject body = packet.getJSONObject();
+                    pageSizes.add(body != null ? body.optJSONArray("requests").length() : 1);
+                    return DispatchResult.forStatus(serverUp[0] ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_UNAVAILABLE);
+                }
+            });
+            dispatcher.getRetryPolicy().setBaseDelay(1).setMaxDelay(1);
+            dispatcher.getCircuitBreaker().setEnabled(true).setFailureThreshold(2).setOpenDuration(300);
+            dispatcher.setDispatchInterval(-1);
+            for (int i = 0; i < 5; i++)
+                dispatcher.submit("?idsite=1&rec=1&action_name=" + i);
+
+            dispatcher.forceDispatch();
+            Thread.sleep(100);
+            assertEquals(CircuitBreaker.State.CLOSED, dispatcher.getCircuitBreaker().getState());
+            dispatcher.forceDispatch();
+            Thread.sleep(100);
+            assertEquals(CircuitBreaker.State.OPEN, dispatcher.getCircuitBreaker().getState());
+            assertEquals(2, pageSizes.size());
+
+            // Nothing is sent while open, the forced dispatch waits for the breaker
+            dispatcher.forceDispatch();
+            Thread.sleep(100);
+            assertEquals(2, pageSizes.size());
+
+            serverUp[0] = true;
+            Thread.sleep(300);
+            // A single event probed the server
+            assertEquals(3, pageSizes.size());
+            assertEquals(1, (int) pageSizes.get(2));
+            assertEquals(CircuitBreaker.State.CLOSED, dispatcher.getCircuitBreaker().getState());
+
+            dispatcher.forceDispatch();
+            Thread.sleep(100);
+            assertEquals(4, pageSizes.size());
+            assertEquals(4, (int) pageSizes.get(3));
+        } finally {
+            getPiwik().setDryRun(true);
+        }
+    }
+
+    @Test
+    public void testGetVisitorId() throws Exception {
+        assertEquals("abc", Dispatcher.getVisitorId("?idsite=1&_id=abc&rec=1"));
+        assertEquals("abc", Dispatcher.getVisitorId("?_id=abc"));
+        assertEquals("abc", Dispatcher.getVisitorId("?e_id=x&_id=abc"));
+        assertEquals("", Dispatcher.getVisitorId("?e_id=x"));
+        assertEquals("", Dispatcher.getVisitorId("?idsite=1"));
+    }
+
     @Test
     public void testBatchDispatch() throws Exception {
         final Tracker tracker = createTracker();
@@ -0,0 +1,174 @@
+package org.piwik.sdk.dispatcher;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class EventQueueTest {
+
+    private static List<String> drain(EventQueue queue) {
+        List<Event> events = new ArrayList<>();
+        queue.drainTo(events);
+        List<String> queries = new ArrayList<>();
+        for (Event event : events)
+            queries.add(event.getQuery());
+        return queries;
+    }
+
+    @Test
+    public void testUnboundedByDefault() throws Exception {
+        EventQueue queue = new EventQueue();
+        for (int i = 0; i < 1000; i++)
+            queue.add(new Event("?e=" + i));
+        assertEquals(1000, queue.size());
+        assertEquals(0, queue.getDroppedEvents());
+        assertEquals(1000, drain(queue).size());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        EventQueue queue = new EventQueue();
+        queue.setMaxEvents(2);
+        queue.add(new Event("?e=1"));
+        queue.add(new Event("?e=2"));
+        queue.add(new Event("?e=3"));
+        assertEquals(1, queue.getDroppedEvents());
+        List<String> queries = drain(queue);
+        assertEquals(2, queries.size());
+        assertEquals("?e=2", queries.get(0));
+        assertEquals("?e=3", queries.get(1));
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        EventQueue queue = new EventQueue();
+        queue.setMaxEvents(2);
+        queue.setOverflowPolicy(EventQueue.OverflowPolicy.DROP_NEWEST);
+        queue.add(new Event("?e=1"));
+        queue.add(new Event("?e=2"));
+        queue.add(new Event("?e=3"));
+        assertEquals(1, queue.getDroppedEvents());
+        List<String> queries = drain(queue);
+        assertEquals("?e=1", queries.get(0));
+        assertEquals("?e=2", queries.get(1));
+    }
+
+    @Test
+    public void testByteLimit() throws Exception {
+        EventQueue queue = new EventQueue();
+        Event event = new Event("?e=1");
+        queue.setMaxBytes(event.getMemorySize() * 3);
+        for (int i = 0; i < 5; i++)
+            queue.add(new Event("?e=" + i));
+        assertEquals(3, queue.size());
+        assertEquals(2, queue.getDroppedEvents());
+
+        // Doesn't fit at all
+        queue.add(new Event("?event=that_is_way_too_long"));
+        assertEquals(3, queue.getDroppedEvents());
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void testSampleByPriority() throws Exception {
+        EventQueue queue = new EventQueue();
+        queue.setMaxEvents(3);
+        queue.setOverflowPolicy(EventQueue.OverflowPolicy.SAMPLE_BY_PRIORITY);
+        queue.add(new Event("?critical=1", Priority.CRITICAL));
+        for (int i = 0; i < 10; i++)
+            queue.add(new Event("?normal=" + i));
+        queue.add(new Event("?bulk=1", Priority.BULK));
+        queue.add(new Event("?critical=2", Priority.CRITICAL));
+
+        List<String> queries = drain(queue);
+        assertEquals(3, queries.size());
+        assertTrue(queries.contains("?critical=1"));
+        assertTrue(queries.contains("?critical=2"));
+        assertFalse(queries.contains("?bulk=1"));
+        assertEquals(10, queue.getDroppedEvents());
+    }
+
+    @Test
+    public void testSpillToDisk() throws Exception {
+        File directory = File.createTempFile("piwik", "spill");
+        assertTrue(directory.delete());
+        DiskEventStore store = new DiskEventStore(directory);
+
+        EventQueue queue = new EventQueue();
+        queue.setEventStore(store);
+        queue.setMaxEvents(2);
+        queue.setOverflowPolicy(EventQueue.OverflowPolicy.SPILL_TO_DISK);
+        for (int i = 0; i < 5; i++)
+            queue.add(new Event("?e=" + i));
+        assertEquals(3, queue.getSpilledEvents());
+        assertEquals(0, queue.getDroppedEvents());
+        assertEquals(5, queue.size());
+
+        // Memory first, then as much from disk as the limit allows
+        List<String> queries = drain(queue);
+        assertEquals(4, queries.size());
+        assertEquals("?e=0", queries.get(0));
+        assertEquals("?e=3", queries.get(3));
+        assertFalse(queue.isEmpty());
+
+        queue.add(new Event("?e=5"));
+        queries = drain(queue);
+        assertEquals(2, queries.size());
+        assertEquals("?e=4", queries.get(0));
+        assertEquals("?e=5", queries.get(1));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testSpillWithoutDiskStoreDropsOldest() throws Exception {
+        EventQueue queue = new EventQueue();
+        queue.setMaxEvents(1);
+        queue.setOverflowPolicy(EventQueue.OverflowPolicy.SPILL_TO_DISK);
+        queue.add(new Event("?e=1"));
+        queue.add(new Event("?e=2"));
+        assertEquals(1, queue.getDroppedEvents());
+        assertEquals("?e=2", drain(queue).get(0));
+    }
+
+    @Test
+    public void testDrainByPriority() throws Exception {
+        EventQueue queue = new EventQueue();
+        queue.add(new Event("?e=1", Priority.BULK));
+        queue.add(new Event("?e=2", Priority.CRITICAL));
+        queue.add(new Event("?e=3", Priority.NORMAL));
+        queue.add(new Event("?e=4", Priority.CRITICAL));
+        assertEquals(1, queue.size(Priority.BULK));
+        assertEquals(2, queue.size(Priority.CRITICAL));
+
+        List<Event> events = new ArrayList<>();
+        queue.drainTo(events, Priority.CRITICAL);
+        assertEquals(2, events.size());
+        assertEquals("?e=2", events.get(0).getQuery());
+        assertEquals("?e=4", events.get(1).getQuery());
+        assertEquals(0, queue.size(Priority.CRITICAL));
+
+        events.clear();
+        queue.drainTo(events, Priority.NORMAL);
+        assertEquals(1, events.size());
+        assertEquals("?e=3", events.get(0).getQuery());
+        assertEquals(1, queue.size());
+        assertTrue(queue.getOldestTimestamp(Priority.BULK) > 0);
+        assertEquals(-1, queue.getOldestTimestamp(Priority.NORMAL));
+
+        assertEquals("?e=1", drain(queue).get(0));
+        assertEquals(0, queue.size(Priority.BULK));
+    }
+}
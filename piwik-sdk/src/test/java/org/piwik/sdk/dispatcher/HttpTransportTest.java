@@ -0,0 +1,119 @@
+package org.piwik.sdk.dispatcher;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.testhelper.MockServer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class HttpTransportTest {
+    private MockServer mServer;
+    private HttpTransport mTransport;
+
+    @Before
+    public void setup() throws Exception {
+        mServer = new MockServer();
+        mTransport = new HttpTransport(1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    private Packet createPostPacket(int events) throws Exception {
+        List<String> requests = new ArrayList<>();
+        for (int i = 0; i < events; i++)
+            requests.add("?idsite=1&_id=0123456789abcdef&action_name=" + i);
+        JSONObject body = new JSONObject();
+        body.put("requests", new JSONArray(requests));
+        return new Packet(mServer.getUrl(), body);
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        DispatchResult result = mTransport.send(new Packet(new URL(mServer.getUrl() + "?idsite=1&rec=1")));
+        assertTrue(result.isSuccess());
+        assertTrue(result.getLatency() >= 0);
+
+        MockServer.Request request = mServer.getRequests().get(0);
+        assertEquals("GET", request.method);
+        assertEquals("/piwik.php?idsite=1&rec=1", request.path);
+    }
+
+    @Test
+    public void testPost() throws Exception {
+        Packet packet = createPostPacket(2);
+        assertTrue(mTransport.send(packet).isSuccess());
+
+        MockServer.Request request = mServer.getRequests().get(0);
+        assertEquals("POST", request.method);
+        assertEquals("application/json", request.headers.get("content-type"));
+        assertNull(request.headers.get("content-encoding"));
+        assertEquals(packet.getJSONObject().toString(), request.body);
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        mTransport.setCompression(true);
+        mTransport.setCompressionThreshold(200);
+
+        Packet small = createPostPacket(1);
+        mTransport.send(small);
+        Packet large = createPostPacket(50);
+        mTransport.send(large);
+
+        List<MockServer.Request> requests = mServer.getRequests();
+        assertNull(requests.get(0).headers.get("content-encoding"));
+        assertEquals(small.getJSONObject().toString(), requests.get(0).body);
+        assertEquals("gzip", requests.get(1).headers.get("content-encoding"));
+        assertEquals(large.getJSONObject().toString(), requests.get(1).body);
+    }
+
+    @Test
+    public void testRetryAfter() throws Exception {
+        mServer.enqueue(new MockServer.Response(HttpURLConnection.HTTP_UNAVAILABLE).header("Retry-After", "120"));
+        DispatchResult result = mTransport.send(createPostPacket(2));
+        assertFalse(result.isSuccess());
+        assertTrue(result.isRetryable());
+        assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, result.getStatusCode());
+        assertEquals(120 * 1000, result.getRetryAfter());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        mTransport.setTimeOut(100);
+        mServer.enqueue(new MockServer.Response(HttpURLConnection.HTTP_OK).delay(1000));
+        DispatchResult result = mTransport.send(createPostPacket(2));
+        assertTrue(result.getException() instanceof SocketTimeoutException);
+        assertTrue(result.isRetryable());
+    }
+
+    @Test
+    public void testConnectionReuse() throws Exception {
+        mServer.enqueue(new MockServer.Response(HttpURLConnection.HTTP_BAD_REQUEST));
+        for (int i = 0; i < 10; i++)
+            mTransport.send(createPostPacket(2));
+        assertEquals(10, mServer.getRequests().size());
+        // Drained responses, even error responses, keep the connection alive
+        assertEquals(1, mServer.getConnectionCount());
+    }
+}
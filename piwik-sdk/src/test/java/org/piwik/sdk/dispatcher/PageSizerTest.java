@@ -0,0 +1,102 @@
+package org.piwik.sdk.dispatcher;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class PageSizerTest {
+    private static final DispatchResult OK = DispatchResult.forStatus(HttpURLConnection.HTTP_OK);
+
+    @Test
+    public void testFixedByDefault() throws Exception {
+        PageSizer pageSizer = new PageSizer();
+        assertFalse(pageSizer.isAdaptive());
+        assertEquals(PageSizer.DEFAULT_MAX_EVENTS, pageSizer.getPageSize());
+        for (int i = 0; i < 10; i++)
+            pageSizer.onPageDispatched(pageSizer.getPageSize(), OK, 10);
+        assertEquals(PageSizer.DEFAULT_MAX_EVENTS, pageSizer.getPageSize());
+
+        pageSizer.setMaxEvents(50);
+        assertEquals(50, pageSizer.getPageSize());
+
+        // The server won't take pages that big, no matter the mode
+        pageSizer.onPageDispatched(50, DispatchResult.forStatus(HttpURLConnection.HTTP_ENTITY_TOO_LARGE), 10);
+        assertEquals(25, pageSizer.getPageSize());
+        for (int i = 1; i < PageSizer.RESTORE_AFTER_SUCCESSES; i++)
+            pageSizer.onPageDispatched(25, OK, 10);
+        assertEquals(25, pageSizer.getPageSize());
+        // Not for good though
+        pageSizer.onPageDispatched(25, OK, 10);
+        assertEquals(50, pageSizer.getPageSize());
+        assertEquals(PageSizer.Reason.RESTORED, pageSizer.getHistory().get(pageSizer.getHistory().size() - 1).getReason());
+    }
+
+    @Test
+    public void testGrowsUpToCeiling() throws Exception {
+        PageSizer pageSizer = new PageSizer().setMaxEvents(100).setAdaptive(true);
+        assertEquals(20, pageSizer.getPageSize());
+
+        pageSizer.onPageDispatched(20, OK, 10);
+        assertEquals(20, pageSizer.getPageSize());
+        pageSizer.onPageDispatched(20, OK, 10);
+        assertEquals(30, pageSizer.getPageSize());
+
+        // Pages that weren't full don't count
+        pageSizer.onPageDispatched(5, OK, 10);
+        pageSizer.onPageDispatched(5, OK, 10);
+        assertEquals(30, pageSizer.getPageSize());
+
+        for (int i = 0; i < 100; i++)
+            pageSizer.onPageDispatched(pageSizer.getPageSize(), OK, 10);
+        assertEquals(100, pageSizer.getPageSize());
+    }
+
+    @Test
+    public void testShrinks() throws Exception {
+        PageSizer pageSizer = new PageSizer().setMaxEvents(100).setAdaptive(true).setTargetLatency(1000);
+        pageSizer.onPageDispatched(20, DispatchResult.forStatus(HttpURLConnection.HTTP_ENTITY_TOO_LARGE), 10);
+        assertEquals(10, pageSizer.getPageSize());
+        pageSizer.onPageDispatched(10, DispatchResult.forException(new SocketTimeoutException()), 1000);
+        assertEquals(5, pageSizer.getPageSize());
+        pageSizer.onPageDispatched(5, OK, 2500);
+        assertEquals(2, pageSizer.getPageSize());
+        // Between target and twice the target nothing changes
+        pageSizer.onPageDispatched(2, OK, 1500);
+        pageSizer.onPageDispatched(2, OK, 1500);
+        assertEquals(2, pageSizer.getPageSize());
+        pageSizer.onPageDispatched(2, DispatchResult.forStatus(HttpURLConnection.HTTP_ENTITY_TOO_LARGE), 10);
+        pageSizer.onPageDispatched(1, DispatchResult.forStatus(HttpURLConnection.HTTP_ENTITY_TOO_LARGE), 10);
+        assertEquals(1, pageSizer.getPageSize());
+    }
+
+    @Test
+    public void testHistory() throws Exception {
+        PageSizer pageSizer = new PageSizer().setMaxEvents(100).setAdaptive(true);
+        pageSizer.onPageDispatched(20, OK, 10);
+        pageSizer.onPageDispatched(20, OK, 10);
+        pageSizer.onPageDispatched(30, DispatchResult.forStatus(HttpURLConnection.HTTP_ENTITY_TOO_LARGE), 10);
+
+        List<PageSizer.Change> history = pageSizer.getHistory();
+        PageSizer.Change grown = history.get(history.size() - 2);
+        PageSizer.Change shrunk = history.get(history.size() - 1);
+        assertEquals(PageSizer.Reason.GROW, grown.getReason());
+        assertEquals(30, grown.getPageSize());
+        assertEquals(PageSizer.Reason.TOO_LARGE, shrunk.getReason());
+        assertEquals(15, shrunk.getPageSize());
+
+        for (int i = 0; i < 200; i++)
+            pageSizer.setMaxEvents(i + 1);
+        assertEquals(50, pageSizer.getHistory().size());
+    }
+}
@@ -0,0 +1,106 @@
+package org.piwik.sdk.dispatcher;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class RetryPolicyTest {
+
+    @Test
+    public void testRetryableResults() throws Exception {
+        assertTrue(DispatchResult.forStatus(HttpURLConnection.HTTP_OK).isSuccess());
+        assertTrue(DispatchResult.forStatus(HttpURLConnection.HTTP_NO_CONTENT).isSuccess());
+        assertTrue(DispatchResult.forStatus(HttpURLConnection.HTTP_ACCEPTED).isSuccess());
+        assertFalse(DispatchResult.forStatus(HttpURLConnection.HTTP_ACCEPTED).isRetryable());
+        assertFalse(DispatchResult.forStatus(HttpURLConnection.HTTP_MOVED_TEMP).isSuccess());
+
+        assertTrue(DispatchResult.forException(new SocketTimeoutException()).isRetryable());
+        assertTrue(DispatchResult.forException(new IOException()).isRetryable());
+        assertTrue(DispatchResult.forStatus(HttpURLConnection.HTTP_UNAVAILABLE).isRetryable());
+        assertTrue(DispatchResult.forStatus(HttpURLConnection.HTTP_INTERNAL_ERROR).isRetryable());
+        assertTrue(DispatchResult.forStatus(HttpURLConnection.HTTP_CLIENT_TIMEOUT).isRetryable());
+        assertTrue(DispatchResult.forStatus(DispatchResult.HTTP_TOO_MANY_REQUESTS).isRetryable());
+        assertTrue(DispatchResult.forStatus(HttpURLConnection.HTTP_ENTITY_TOO_LARGE).isRetryable());
+        // A redirect or anything unknown, e.g. from a misconfigured proxy, must not lose events
+        assertTrue(DispatchResult.forStatus(HttpURLConnection.HTTP_MOVED_PERM).isRetryable());
+        assertTrue(DispatchResult.forStatus(HttpURLConnection.HTTP_NOT_MODIFIED).isRetryable());
+        assertTrue(DispatchResult.forStatus(199).isRetryable());
+
+        assertFalse(DispatchResult.forStatus(HttpURLConnection.HTTP_BAD_REQUEST).isRetryable());
+        assertFalse(DispatchResult.forStatus(HttpURLConnection.HTTP_NOT_FOUND).isRetryable());
+        assertFalse(DispatchResult.forException(new IllegalArgumentException()).isRetryable());
+    }
+
+    @Test
+    public void testBackoffIsBounded() throws Exception {
+        RetryPolicy policy = new RetryPolicy().setBaseDelay(100).setMaxDelay(1000);
+        DispatchResult result = DispatchResult.forStatus(HttpURLConnection.HTTP_UNAVAILABLE);
+        for (int i = 0; i < 100; i++) {
+            long first = policy.getBackoff(1, result);
+            assertTrue(first >= 0 && first <= 100);
+            long third = policy.getBackoff(3, result);
+            assertTrue(third >= 0 && third <= 400);
+            long capped = policy.getBackoff(30, result);
+            assertTrue(capped >= 0 && capped <= 1000);
+        }
+    }
+
+    @Test
+    public void testBackoffHonorsRetryAfter() throws Exception {
+        RetryPolicy policy = new RetryPolicy().setBaseDelay(100).setMaxDelay(1000);
+        DispatchResult result = new DispatchResult(DispatchResult.HTTP_TOO_MANY_REQUESTS, 60 * 1000, null);
+        assertEquals(60 * 1000, policy.getBackoff(1, result));
+    }
+
+    @Test
+    public void testExhaustedByAttempts() throws Exception {
+        RetryPolicy policy = new RetryPolicy().setMaxAttempts(2);
+        Event event = new Event("?e=1");
+        assertFalse(policy.isExhausted(event));
+        event.incrementAttempts();
+        assertFalse(policy.isExhausted(event));
+        event.incrementAttempts();
+        assertTrue(policy.isExhausted(event));
+    }
+
+    @Test
+    public void testExhaustedByAge() throws Exception {
+        RetryPolicy policy = new RetryPolicy().setMaxAge(10);
+        Event event = new Event("?e=1");
+        assertFalse(policy.isExhausted(event));
+        Thread.sleep(50);
+        assertTrue(policy.isExhausted(event));
+    }
+
+    @Test
+    public void testRequeueKeepsOrder() throws Exception {
+        EventQueue queue = new EventQueue();
+        List<Event> events = new ArrayList<>();
+        queue.add(new Event("?e=3"));
+        events.add(new Event("?e=1"));
+        events.add(new Event("?e=2"));
+        queue.requeue(events);
+        List<Event> drained = new ArrayList<>();
+        queue.drainTo(drained);
+        assertEquals("?e=1", drained.get(0).getQuery());
+        assertEquals("?e=2", drained.get(1).getQuery());
+        assertEquals("?e=3", drained.get(2).getQuery());
+
+        queue.discard(events);
+        assertEquals(2, queue.getDroppedEvents());
+    }
+}
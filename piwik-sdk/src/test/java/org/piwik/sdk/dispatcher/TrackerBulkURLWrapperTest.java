@@ -122,4 +122,43 @@ public class TrackerBulkURLWrapperTest {
         assertFalse(page.isEmpty());
         assertEquals(wrapper.getEventUrl(page), new URL("http://example.com/?eve20"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testPageByteBudget() throws Exception {
+        List<String> events = new LinkedList<String>();
+        for (int i = 0; i < 10; i++) {
+            events.add("?eve" + i); // 6 chars + 3 overhead
+        }
+        PageSizer pageSizer = new PageSizer().setMaxBytes(20);
+        TrackerBulkURLWrapper wrapper = new TrackerBulkURLWrapper(new URL("http://example.com/"), events, null, pageSizer);
+        Iterator<TrackerBulkURLWrapper.Page> it = wrapper.iterator();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(2, it.next().elementsCount());
+        }
+        assertFalse(it.hasNext());
+
+        // An event exceeding the budget still gets its own page
+        pageSizer.setMaxBytes(10);
+        wrapper = new TrackerBulkURLWrapper(new URL("http://example.com/"), Arrays.asList("?way_too_long_for_the_budget", "?a=1"), null, pageSizer);
+        it = wrapper.iterator();
+        assertEquals(1, it.next().elementsCount());
+        assertEquals(1, it.next().elementsCount());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testPageSizeChangesApplyToRemainingPages() throws Exception {
+        List<String> events = new LinkedList<String>();
+        for (int i = 0; i < 10; i++) {
+            events.add("?eve" + i);
+        }
+        PageSizer pageSizer = new PageSizer().setMaxEvents(4);
+        TrackerBulkURLWrapper wrapper = new TrackerBulkURLWrapper(new URL("http://example.com/"), events, null, pageSizer);
+        Iterator<TrackerBulkURLWrapper.Page> it = wrapper.iterator();
+        assertEquals(4, it.next().elementsCount());
+        pageSizer.setMaxEvents(2);
+        TrackerBulkURLWrapper.Page page = it.next();
+        assertEquals(2, page.elementsCount());
+        assertEquals("?eve4", wrapper.getEvents(page).getJSONArray("requests").get(0));
+    }
+}
@@ -3,6 +3,7 @@ package org.piwik.sdk.testhelper;
 import org.junit.Before;
 import org.junit.runner.RunWith;
 import org.piwik.sdk.Piwik;
+import org.piwik.sdk.TestHooks;
 import org.piwik.sdk.Tracker;
 import org.robolectric.Robolectric;
 import org.robolectric.annotation.Config;
@@ -25,6 +26,8 @@ public abstract class DefaultTestCase {
     public void setup() {
         Piwik.getInstance(Robolectric.application).setDryRun(true);
         Piwik.getInstance(Robolectric.application).setOptOut(true);
+        Piwik.getInstance(Robolectric.application).getVisitorCounters().flush();
         Piwik.getInstance(Robolectric.application).getSharedPreferences().edit().clear().apply();
+        TestHooks.reloadVisitorCounters(Piwik.getInstance(Robolectric.application));
     }
 }
@@ -0,0 +1,254 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.testhelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Minimal HTTP/1.1 server on the loopback interface, a stand-in for a Piwik instance.
+ * <p/>
+ * Records every request and answers with scripted {@link Response}s, 200 once the script ran out.
+ * Supports keep-alive, chunked and gzip encoded request bodies, which is all the {@link org.piwik.sdk.dispatcher.HttpTransport} uses.
+ */
+public class MockServer {
+    private final ServerSocket mServerSocket;
+    private final List<Request> mRequests = Collections.synchronizedList(new ArrayList<Request>());
+    private final LinkedList<Response> mResponses = new LinkedList<>();
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+    public static class Request {
+        public final String method;
+        public final String path;
+        public final Map<String, String> headers;
+        public final String body;
+        public final int connection;
+
+        Request(String method, String path, Map<String, String> headers, String body, int connection) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+            this.connection = connection;
+        }
+    }
+
+    public static class Response {
+        public final int status;
+        public final Map<String, String> headers = new HashMap<>();
+        public String body = "";
+        public long delay = 0;
+
+        public Response(int status) {
+            this.status = status;
+        }
+
+        public Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        /**
+         * @param delay milliseconds to wait before answering
+         */
+        public Response delay(long delay) {
+            this.delay = delay;
+            return this;
+        }
+    }
+
+    public MockServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        mSockets.add(socket);
+                        final int connection = mConnections.incrementAndGet();
+                        Thread handler = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket, connection);
+                            }
+                        });
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public URL getUrl() throws IOException {
+        return new URL("http://127.0.0.1:" + mServerSocket.getLocalPort() + "/piwik.php");
+    }
+
+    /**
+     * Queues the answer for a future request.
+     */
+    public MockServer enqueue(Response response) {
+        synchronized (mResponses) {
+            mResponses.add(response);
+        }
+        return this;
+    }
+
+    public List<Request> getRequests() {
+        return new ArrayList<>(mRequests);
+    }
+
+    /**
+     * @return number of TCP connections accepted so far
+     */
+    public int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    public void shutdown() throws IOException {
+        mServerSocket.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets)
+                socket.close();
+        }
+    }
+
+    private void serve(Socket socket, int connection) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty())
+                    break;
+                String[] parts = requestLine.split(" ");
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+
+                byte[] body;
+                if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                    body = readChunked(in);
+                } else if (headers.containsKey("content-length")) {
+                    body = readFully(in, Integer.parseInt(headers.get("content-length")));
+                } else {
+                    body = new byte[0];
+                }
+                if ("gzip".equalsIgnoreCase(headers.get("content-encoding")))
+                    body = gunzip(body);
+
+                mRequests.add(new Request(parts[0], parts[1], headers, new String(body, "UTF-8"), connection));
+
+                Response response;
+                synchronized (mResponses) {
+                    response = mResponses.isEmpty() ? new Response(200) : mResponses.removeFirst();
+                }
+                if (response.delay > 0)
+                    Thread.sleep(response.delay);
+                byte[] responseBody = response.body.getBytes("UTF-8");
+                StringBuilder head = new StringBuilder();
+                head.append("HTTP/1.1 ").append(response.status).append(" Mock\r\n");
+                head.append("Content-Length: ").append(responseBody.length).append("\r\n");
+                for (Map.Entry<String, String> header : response.headers.entrySet())
+                    head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                head.append("\r\n");
+                out.write(head.toString().getBytes("UTF-8"));
+                out.write(responseBody);
+                out.flush();
+
+                if ("close".equalsIgnoreCase(headers.get("connection")))
+                    break;
+            }
+        } catch (Exception ignore) {
+            // Client went away or we are shutting down
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n')
+                break;
+            if (c != '\r')
+                line.write(c);
+        }
+        if (c == -1 && line.size() == 0)
+            return null;
+        return line.toString("UTF-8");
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(data, read, length - read);
+            if (count == -1)
+                throw new IOException("Unexpected end of stream");
+            read += count;
+        }
+        return data;
+    }
+
+    private static byte[] readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String sizeLine = readLine(in);
+            if (sizeLine == null)
+                throw new IOException("Unexpected end of stream");
+            int semicolon = sizeLine.indexOf(';');
+            int size = Integer.parseInt((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+            if (size == 0) {
+                // Trailers until the empty line
+                String trailer;
+                while ((trailer = readLine(in)) != null && !trailer.isEmpty()) ;
+                return body.toByteArray();
+            }
+            body.write(readFully(in, size));
+            readLine(in);
+        }
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) != -1)
+            out.write(buffer, 0, count);
+        return out.toByteArray();
+    }
+}
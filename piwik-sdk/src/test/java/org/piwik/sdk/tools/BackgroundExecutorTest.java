@@ -0,0 +1,96 @@
+package org.piwik.sdk.tools;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.testhelper.FullEnvTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(FullEnvTestRunner.class)
+public class BackgroundExecutorTest {
+
+    @Test
+    public void testThreadsAreBounded() throws Exception {
+        BackgroundExecutor executor = new BackgroundExecutor(2, "BackgroundExecutorTest");
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch latch = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Thread current = Thread.currentThread();
+                    assertTrue(current.isDaemon());
+                    threads.add(current.getName());
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(threads.size() <= 2);
+        for (String name : threads)
+            assertTrue(name.startsWith("BackgroundExecutorTest-"));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testIdleThreadsEnd() throws Exception {
+        BackgroundExecutor executor = new BackgroundExecutor(1, "BackgroundExecutorTest");
+        executor.setKeepAliveTime(10, TimeUnit.MILLISECONDS);
+        final CountDownLatch latch = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getPoolSize() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, executor.getPoolSize());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testIdleThreadsEndAfterDelayedTasks() throws Exception {
+        BackgroundExecutor executor = new BackgroundExecutor(2, "BackgroundExecutorTest");
+        executor.setKeepAliveTime(10, TimeUnit.MILLISECONDS);
+        final CountDownLatch latch = new CountDownLatch(1);
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> cancelled = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 1, TimeUnit.HOURS);
+        assertTrue(executor.getPoolSize() > 0);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        // A pending task keeps a thread around
+        Thread.sleep(100);
+        assertEquals(1, executor.getPoolSize());
+
+        cancelled.cancel(false);
+        executor.purge();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getPoolSize() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, executor.getPoolSize());
+        executor.shutdown();
+    }
+}
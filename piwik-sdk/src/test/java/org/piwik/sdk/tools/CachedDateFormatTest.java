@@ -0,0 +1,100 @@
+package org.piwik.sdk.tools;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.testhelper.FullEnvTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(FullEnvTestRunner.class)
+public class CachedDateFormatTest {
+
+    private static String reference(long timeMillis) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ").format(new Date(timeMillis));
+    }
+
+    @Test
+    public void testMatchesSimpleDateFormat() throws Exception {
+        long start = 1464777296000L; // 2016-06-01 10:34:56 UTC
+        // Every 250ms over a couple of minutes, crossing second and minute boundaries
+        for (long time = start; time < start + 3 * 60 * 1000; time += 250)
+            assertEquals(reference(time), CachedDateFormat.format(time));
+    }
+
+    @Test
+    public void testRandomOrder() throws Exception {
+        Random random = new Random(7);
+        long start = 1464777296000L;
+        for (int i = 0; i < 10000; i++) {
+            long time = start + random.nextInt(10 * 60 * 1000) - 5 * 60 * 1000;
+            assertEquals(reference(time), CachedDateFormat.format(time));
+        }
+    }
+
+    @Test
+    public void testTimeZoneChanges() throws Exception {
+        TimeZone previous = TimeZone.getDefault();
+        try {
+            long time = 1464777296000L;
+            TimeZone.setDefault(TimeZone.getTimeZone("Europe/Berlin"));
+            assertEquals(reference(time), CachedDateFormat.format(time));
+            TimeZone.setDefault(TimeZone.getTimeZone("America/Los_Angeles"));
+            // Picked up with the next minute
+            assertEquals(reference(time + 60 * 1000), CachedDateFormat.format(time + 60 * 1000));
+
+            // Daylight saving time starts in Berlin at 2016-03-27 01:00:00 UTC
+            TimeZone.setDefault(TimeZone.getTimeZone("Europe/Berlin"));
+            long transition = 1459040400000L;
+            for (long t = transition - 5000; t < transition + 5000; t += 500)
+                assertEquals(reference(t), CachedDateFormat.format(t));
+        } finally {
+            TimeZone.setDefault(previous);
+        }
+    }
+
+    @Test
+    public void testThreadSafety() throws Exception {
+        final long start = 1464777296000L;
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final int offset = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long time = start + offset * 1000; time < start + 5 * 60 * 1000; time += 333) {
+                        String expected = reference(time);
+                        String formatted = CachedDateFormat.format(time);
+                        if (!expected.equals(formatted))
+                            failures.add(expected + " != " + formatted);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    @Test
+    public void testNow() throws Exception {
+        long before = System.currentTimeMillis();
+        String now = CachedDateFormat.now();
+        long after = System.currentTimeMillis();
+        assertTrue(now.equals(reference(before)) || now.equals(reference(after)));
+    }
+}
@@ -0,0 +1,102 @@
+package org.piwik.sdk.tools;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.testhelper.FullEnvTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(FullEnvTestRunner.class)
+public class MpscRingBufferTest {
+
+    @Test
+    public void testCapacity() throws Exception {
+        assertEquals(1, new MpscRingBuffer<String>(1).capacity());
+        assertEquals(16, new MpscRingBuffer<String>(16).capacity());
+        assertEquals(32, new MpscRingBuffer<String>(17).capacity());
+    }
+
+    @Test
+    public void testFifo() throws Exception {
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(4);
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.poll());
+        // Wraps around a few times
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 3; i++)
+                assertTrue(buffer.offer(round * 10 + i));
+            assertFalse(buffer.isEmpty());
+            for (int i = 0; i < 3; i++)
+                assertEquals(round * 10 + i, (int) buffer.poll());
+            assertTrue(buffer.isEmpty());
+        }
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(4);
+        for (int i = 0; i < 4; i++)
+            assertTrue(buffer.offer(i));
+        assertFalse(buffer.offer(4));
+        assertEquals(0, (int) buffer.poll());
+        assertTrue(buffer.offer(4));
+        for (int i = 1; i <= 4; i++)
+            assertEquals(i, (int) buffer.poll());
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    public void testMultipleProducers() throws Exception {
+        final MpscRingBuffer<int[]> buffer = new MpscRingBuffer<>(64);
+        final int producerCount = 8;
+        final int itemsPerProducer = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int p = 0; p < producerCount; p++) {
+            final int producer = p;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < itemsPerProducer; i++) {
+                        while (!buffer.offer(new int[]{producer, i}))
+                            Thread.yield();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+
+        List<Integer> next = new ArrayList<>();
+        for (int p = 0; p < producerCount; p++)
+            next.add(0);
+        int received = 0;
+        long timeout = System.currentTimeMillis() + 30000;
+        while (received < producerCount * itemsPerProducer && System.currentTimeMillis() < timeout) {
+            int[] item = buffer.poll();
+            if (item == null) {
+                Thread.yield();
+                continue;
+            }
+            // Nothing lost, nothing duplicated, each producer's items in order
+            assertEquals((int) next.get(item[0]), item[1]);
+            next.set(item[0], item[1] + 1);
+            received++;
+        }
+        assertEquals(producerCount * itemsPerProducer, received);
+        assertTrue(buffer.isEmpty());
+    }
+}
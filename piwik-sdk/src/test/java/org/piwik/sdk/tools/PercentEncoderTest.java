@@ -0,0 +1,108 @@
+package org.piwik.sdk.tools;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.dispatcher.Dispatcher;
+import org.piwik.sdk.testhelper.FullEnvTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(FullEnvTestRunner.class)
+public class PercentEncoderTest {
+    private static final String[] SAMPLES = {
+            "", " ", "+", "%", "a b+c", "http://example.com/path?query=1&other=2#hash",
+            "\u00E4\u00F6\u00FC\u00DF", "\u20AC", "\u65E5\u672C\u8A9E", "\uD83D\uDE00", "emoji \uD83D\uDE00 in text", "\u0000\u007F\u0080\u07FF\u0800\uFFFF",
+            "\uD83D", "\uDE00", "a\uD83Db", "\uDE00\uD83D", "\uD83D\uD83D\uDE00", "~!@#$^&()=[]{}|\\;:'\",<>/?`"
+    };
+
+    /**
+     * The implementation this encoder replaced, kept as reference.
+     */
+    private static String reference(String value) throws Exception {
+        return URLEncoder.encode(value, "UTF-8").replaceAll("\\+", "%20");
+    }
+
+    private static String reference(Map<String, String> map) throws Exception {
+        StringBuilder sb = new StringBuilder(100);
+        sb.append('?');
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            sb.append(entry.getKey() == null ? "" : reference(entry.getKey()));
+            sb.append('=');
+            sb.append(entry.getValue() == null ? "" : reference(entry.getValue()));
+            sb.append('&');
+        }
+        return sb.substring(0, sb.length() - 1);
+    }
+
+    private static String randomString(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(30);
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    sb.append((char) random.nextInt(128));
+                    break;
+                case 1:
+                    sb.append((char) random.nextInt(0x800));
+                    break;
+                case 2:
+                    sb.append((char) random.nextInt(0x10000));
+                    break;
+                default:
+                    sb.appendCodePoint(0x10000 + random.nextInt(0x100000));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testSamples() throws Exception {
+        for (String sample : SAMPLES)
+            assertEquals(reference(sample), PercentEncoder.encode(sample));
+    }
+
+    @Test
+    public void testEveryChar() throws Exception {
+        for (int c = 0; c <= 0xFFFF; c++) {
+            String value = "x" + (char) c + "y";
+            assertEquals(reference(value), PercentEncoder.encode(value));
+        }
+    }
+
+    @Test
+    public void testRandomStrings() throws Exception {
+        Random random = new Random(1337);
+        for (int i = 0; i < 10000; i++) {
+            String value = randomString(random);
+            assertEquals(reference(value), PercentEncoder.encode(value));
+        }
+    }
+
+    @Test
+    public void testSafeValueIsNotCopied() throws Exception {
+        String value = "Already-safe_value.1*";
+        assertSame(value, PercentEncoder.encode(value));
+    }
+
+    @Test
+    public void testQueryMatchesReference() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            Map<String, String> map = new LinkedHashMap<>();
+            int size = random.nextInt(25);
+            for (int j = 0; j < size; j++)
+                map.put(randomString(random), random.nextInt(10) == 0 ? null : randomString(random));
+            assertEquals(reference(map), Dispatcher.urlEncodeUTF8(map));
+        }
+        assertEquals("", Dispatcher.urlEncodeUTF8(new LinkedHashMap<String, String>()));
+    }
+}